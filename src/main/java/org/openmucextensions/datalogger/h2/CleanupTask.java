@@ -8,7 +8,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This task deletes old records in the database.
+ * This task deletes old records in the database and compacts the database file afterwards, so that
+ * the file size follows the amount of retained data.
  * 
  * @author Mike Pichler
  *
@@ -19,11 +20,19 @@ public class CleanupTask extends TimerTask {
 	
 	private final DatabaseWrapper database;
 	private final long storageInterval;
+	private final long maxCompactTime;
 	
-	public CleanupTask(final DatabaseWrapper database, long storageInterval) {
+	/**
+	 * Creates a new cleanup task.
+	 * @param database the database
+	 * @param storageInterval records older than this interval in milliseconds will be deleted
+	 * @param maxCompactTime maximum time in milliseconds used to compact the database file, zero disables compaction
+	 */
+	public CleanupTask(final DatabaseWrapper database, long storageInterval, long maxCompactTime) {
 		super();
 		this.database = database;
 		this.storageInterval = storageInterval;
+		this.maxCompactTime = maxCompactTime;
 	}
 	
 	@Override
@@ -36,6 +45,17 @@ public class CleanupTask extends TimerTask {
 			logger.debug("Deleted records before {} from database ({} record(s) affected)", new Timestamp(threshold).toString(), rowsAffected);
 		} catch (SQLException e) {
 			logger.error("Error while deleting old records from database: {}", e.getMessage());
+			return;
+		}
+		
+		if(maxCompactTime>0) {
+			try {
+				long start = System.currentTimeMillis();
+				database.compact(maxCompactTime);
+				logger.debug("Compacted database file in {} ms", System.currentTimeMillis() - start);
+			} catch (SQLException e) {
+				logger.error("Error while compacting database file: {}", e.getMessage());
+			}
 		}
 		
 	}
@@ -1,5 +1,6 @@
 package org.openmucextensions.datalogger.h2;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -7,10 +8,23 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.h2.engine.Session;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.db.MVTableEngine;
 import org.openmuc.framework.data.BooleanValue;
+import org.openmuc.framework.data.ByteArrayValue;
 import org.openmuc.framework.data.DoubleValue;
 import org.openmuc.framework.data.Flag;
 import org.openmuc.framework.data.IntValue;
@@ -30,11 +44,38 @@ import org.openmuc.framework.datalogger.spi.LogRecordContainer;
  */
 public class DatabaseWrapper {
 	
+	/**
+	 * Current version of the database schema. Databases with an older version will be migrated
+	 * step by step on connect, see {@link #migrateSchema(int)}.
+	 */
+	public static final int SCHEMA_VERSION = 4;
+	
+	// only query results of time spans that ended at least this long ago will be cached, more recent time spans
+	// are likely to receive records and would be invalidated soon
+	private static final long MIN_CACHE_AGE = 60*60*1000;
+	
+	// size of the first time window that is searched for the record in effect at a point in time
+	private static final long RECORD_AT_WINDOW = 60*1000;
+	
+	// maximum number of strings per channel that have been logged once and will be added to the dictionary if they repeat
+	private static final int MAX_STRING_CANDIDATES = 16;
+	
+	private static final String[] VALUE_TABLES = { "DOUBLE_VALUES", "LONG_VALUES", "INT_VALUES", "BOOL_VALUES", "STRING_VALUES", "BYTE_ARRAY_VALUES" };
+	
 	private Connection connection = null;
 	
+	private boolean useRecordTimestamps = false;
+	private int stringDictionarySize = 1024;
+	private RecordCache recordCache = new RecordCache(4*1024*1024);
+	private final Map<String, Integer> stringCodes = new HashMap<>();
+	private final List<String> dictionaryStrings = new ArrayList<>();
+	private final Map<String, Set<String>> stringCandidates = new HashMap<>();
+	private final Map<String, Long> latestTimestamps = new HashMap<>();
+	
 	/**
 	 * Connects to the specified H2 database or creates a new database file, if the database doesn't exist.
-	 * If the database doesn't contain the necessary tables they will be created.
+	 * If the database doesn't contain the necessary tables they will be created and if the database
+	 * schema is outdated it will be migrated to the current schema version.
 	 * @param databasename the database name
 	 * @throws SQLException if an error occurs while accessing the database
 	 * @throws ClassNotFoundException if the H2 JDBC driver couldn't be found
@@ -43,6 +84,42 @@ public class DatabaseWrapper {
 		Class.forName("org.h2.Driver");
 		connection = DriverManager.getConnection("jdbc:h2:" + databasename, "sa", "");
 		createTables();
+		migrateSchema();
+		loadStringDictionary();
+		loadLatestTimestamps();
+	}
+	
+	/**
+	 * Sets whether the timestamp of each record or the timestamp of the log call should be stored. If record
+	 * timestamps are used, each batch will be sorted by channel id and timestamp, duplicates within a batch will
+	 * be removed (the last record wins) and records that already exist in the database will be replaced. This
+	 * allows late and out-of-order records without failing the whole batch. By default, the timestamp of the
+	 * log call will be stored.
+	 * @param useRecordTimestamps true to store record timestamps
+	 */
+	public void setUseRecordTimestamps(boolean useRecordTimestamps) {
+		this.useRecordTimestamps = useRecordTimestamps;
+	}
+	
+	/**
+	 * Sets the maximum size of the query result cache. Results of queries for time spans that ended at least
+	 * an hour ago will be cached until the least recently used results have to be removed or records in the
+	 * time span are changed. The default size is 4MB, zero disables the cache.
+	 * @param cacheSize approximate maximum heap usage of the cached records in bytes
+	 */
+	public void setCacheSize(long cacheSize) {
+		recordCache = new RecordCache(cacheSize);
+	}
+	
+	/**
+	 * Sets the maximum number of distinct strings that will be dictionary encoded. Strings that are
+	 * already in the dictionary will be stored as integer code, strings that repeat within a channel will
+	 * be added to the dictionary as long as it's not full. Other strings will be stored as text. Zero
+	 * disables adding new strings to the dictionary. The default size is 1024.
+	 * @param stringDictionarySize maximum number of dictionary entries
+	 */
+	public void setStringDictionarySize(int stringDictionarySize) {
+		this.stringDictionarySize = stringDictionarySize;
 	}
 	
 	/**
@@ -70,6 +147,7 @@ public class DatabaseWrapper {
 			statement.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
 			statement.setString(5, channel.getValueType().name());
 			statement.execute();
+			recordCache.invalidate(channel.getId());
 		} finally {
 			if(statement!=null) statement.close();
 		}
@@ -77,19 +155,23 @@ public class DatabaseWrapper {
 	}
 	
 	public synchronized void logDoubleValues(List<LogRecordContainer> containers, long timestamp) throws SQLException {
+		logDoubleValues(containers, timestamp, useRecordTimestamps);
+	}
+	
+	private void logDoubleValues(List<LogRecordContainer> containers, long timestamp, boolean recordTimestamps) throws SQLException {
 		
 		if(containers==null) return;
 		
 		Timestamp sqlTimestamp = new Timestamp(timestamp);
 		
-		PreparedStatement statement = connection.prepareStatement("INSERT INTO DOUBLE_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES(?, ?, ?, ?);");
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand("DOUBLE_VALUES", "ID, TIMESTAMP, VALUE, FLAG", recordTimestamps) + " VALUES(?, ?, ?, ?);");
 		
 		try {
-			for (LogRecordContainer logRecordContainer : containers) {
+			for (LogRecordContainer logRecordContainer : getBatchContainers(containers, recordTimestamps)) {
 
 				if(isContainerValid(logRecordContainer)) {
 					statement.setString(1, logRecordContainer.getChannelId());
-					statement.setTimestamp(2, sqlTimestamp);
+					statement.setTimestamp(2, getTimestamp(logRecordContainer, sqlTimestamp, recordTimestamps));
 					statement.setDouble(3, logRecordContainer.getRecord().getValue().asDouble());
 					
 					if (logRecordContainer.getRecord().getFlag() != null) {
@@ -104,25 +186,31 @@ public class DatabaseWrapper {
 			}
 			
 			statement.executeBatch();
+			updateLatestTimestamps(containers, sqlTimestamp, recordTimestamps);
 		} finally {
+			invalidateCachedRecords(containers, sqlTimestamp, recordTimestamps);
 			if(statement!=null) statement.close();
 		}
 	}
 	
 	public synchronized void logIntValues(List<LogRecordContainer> containers, long timestamp) throws SQLException {
+		logIntValues(containers, timestamp, useRecordTimestamps);
+	}
+	
+	private void logIntValues(List<LogRecordContainer> containers, long timestamp, boolean recordTimestamps) throws SQLException {
 		
 		if(containers==null) return;
 		
 		Timestamp sqlTimestamp = new Timestamp(timestamp);
 		
-		PreparedStatement statement = connection.prepareStatement("INSERT INTO INT_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES(?, ?, ?, ?);");
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand("INT_VALUES", "ID, TIMESTAMP, VALUE, FLAG", recordTimestamps) + " VALUES(?, ?, ?, ?);");
 		
 		try {
-			for (LogRecordContainer logRecordContainer : containers) {
+			for (LogRecordContainer logRecordContainer : getBatchContainers(containers, recordTimestamps)) {
 
 				if(isContainerValid(logRecordContainer)) {
 					statement.setString(1, logRecordContainer.getChannelId());
-					statement.setTimestamp(2, sqlTimestamp);
+					statement.setTimestamp(2, getTimestamp(logRecordContainer, sqlTimestamp, recordTimestamps));
 					statement.setInt(3, logRecordContainer.getRecord().getValue().asInt());
 					
 					if (logRecordContainer.getRecord().getFlag() != null) {
@@ -137,25 +225,31 @@ public class DatabaseWrapper {
 			}
 			
 			statement.executeBatch();
+			updateLatestTimestamps(containers, sqlTimestamp, recordTimestamps);
 		} finally {
+			invalidateCachedRecords(containers, sqlTimestamp, recordTimestamps);
 			if(statement!=null) statement.close();
 		}
 	}
 	
 	public synchronized void logLongValues(List<LogRecordContainer> containers, long timestamp) throws SQLException {
+		logLongValues(containers, timestamp, useRecordTimestamps);
+	}
+	
+	private void logLongValues(List<LogRecordContainer> containers, long timestamp, boolean recordTimestamps) throws SQLException {
 		
 		if(containers==null) return;
 		
 		Timestamp sqlTimestamp = new Timestamp(timestamp);
 		
-		PreparedStatement statement = connection.prepareStatement("INSERT INTO LONG_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES(?, ?, ?, ?);");
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand("LONG_VALUES", "ID, TIMESTAMP, VALUE, FLAG", recordTimestamps) + " VALUES(?, ?, ?, ?);");
 		
 		try {
-			for (LogRecordContainer logRecordContainer : containers) {
+			for (LogRecordContainer logRecordContainer : getBatchContainers(containers, recordTimestamps)) {
 
 				if(isContainerValid(logRecordContainer)) {
 					statement.setString(1, logRecordContainer.getChannelId());
-					statement.setTimestamp(2, sqlTimestamp);
+					statement.setTimestamp(2, getTimestamp(logRecordContainer, sqlTimestamp, recordTimestamps));
 					statement.setLong(3, logRecordContainer.getRecord().getValue().asLong());
 					
 					if (logRecordContainer.getRecord().getFlag() != null) {
@@ -170,25 +264,31 @@ public class DatabaseWrapper {
 			}
 			
 			statement.executeBatch();
+			updateLatestTimestamps(containers, sqlTimestamp, recordTimestamps);
 		} finally {
+			invalidateCachedRecords(containers, sqlTimestamp, recordTimestamps);
 			if(statement!=null) statement.close();
 		}
 	}
 	
 	public synchronized void logBoolValues(List<LogRecordContainer> containers, long timestamp) throws SQLException {
+		logBoolValues(containers, timestamp, useRecordTimestamps);
+	}
+	
+	private void logBoolValues(List<LogRecordContainer> containers, long timestamp, boolean recordTimestamps) throws SQLException {
 		
 		if(containers==null) return;
 		
 		Timestamp sqlTimestamp = new Timestamp(timestamp);
 		
-		PreparedStatement statement = connection.prepareStatement("INSERT INTO BOOL_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES(?, ?, ?, ?);");
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand("BOOL_VALUES", "ID, TIMESTAMP, VALUE, FLAG", recordTimestamps) + " VALUES(?, ?, ?, ?);");
 		
 		try {
-			for (LogRecordContainer logRecordContainer : containers) {
+			for (LogRecordContainer logRecordContainer : getBatchContainers(containers, recordTimestamps)) {
 
 				if(isContainerValid(logRecordContainer)) {
 					statement.setString(1, logRecordContainer.getChannelId());
-					statement.setTimestamp(2, sqlTimestamp);
+					statement.setTimestamp(2, getTimestamp(logRecordContainer, sqlTimestamp, recordTimestamps));
 					statement.setBoolean(3, logRecordContainer.getRecord().getValue().asBoolean());
 					
 					if (logRecordContainer.getRecord().getFlag() != null) {
@@ -203,26 +303,81 @@ public class DatabaseWrapper {
 			}
 			
 			statement.executeBatch();
+			updateLatestTimestamps(containers, sqlTimestamp, recordTimestamps);
 		} finally {
+			invalidateCachedRecords(containers, sqlTimestamp, recordTimestamps);
 			if(statement!=null) statement.close();
 		}
 	}
 	
 	public synchronized void logStringValues(List<LogRecordContainer> containers, long timestamp) throws SQLException {
+		logStringValues(containers, timestamp, useRecordTimestamps);
+	}
+	
+	private void logStringValues(List<LogRecordContainer> containers, long timestamp, boolean recordTimestamps) throws SQLException {
+		
+		if(containers==null) return;
+		
+		Timestamp sqlTimestamp = new Timestamp(timestamp);
+		
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand("STRING_VALUES", "ID, TIMESTAMP, VALUE, CODE, FLAG", recordTimestamps) + " VALUES(?, ?, ?, ?, ?);");
+		
+		try {
+			for (LogRecordContainer logRecordContainer : getBatchContainers(containers, recordTimestamps)) {
+
+				if(isContainerValid(logRecordContainer)) {
+					String value = logRecordContainer.getRecord().getValue().asString();
+					Integer code = getStringCode(logRecordContainer.getChannelId(), value);
+					
+					statement.setString(1, logRecordContainer.getChannelId());
+					statement.setTimestamp(2, getTimestamp(logRecordContainer, sqlTimestamp, recordTimestamps));
+					
+					if (code != null) {
+						statement.setNull(3, Types.VARCHAR);
+						statement.setInt(4, code);
+					} else {
+						statement.setString(3, value);
+						statement.setNull(4, Types.INTEGER);
+					}
+					
+					if (logRecordContainer.getRecord().getFlag() != null) {
+						statement.setInt(5, logRecordContainer.getRecord().getFlag().getCode());
+					} else {
+						statement.setInt(5, Flag.VALID.getCode());
+					}
+
+					statement.addBatch();
+				}
+				
+			}
+			
+			statement.executeBatch();
+			updateLatestTimestamps(containers, sqlTimestamp, recordTimestamps);
+		} finally {
+			invalidateCachedRecords(containers, sqlTimestamp, recordTimestamps);
+			if(statement!=null) statement.close();
+		}
+	}
+	
+	public synchronized void logByteArrayValues(List<LogRecordContainer> containers, long timestamp) throws SQLException {
+		logByteArrayValues(containers, timestamp, useRecordTimestamps);
+	}
+	
+	private void logByteArrayValues(List<LogRecordContainer> containers, long timestamp, boolean recordTimestamps) throws SQLException {
 		
 		if(containers==null) return;
 		
 		Timestamp sqlTimestamp = new Timestamp(timestamp);
 		
-		PreparedStatement statement = connection.prepareStatement("INSERT INTO STRING_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES(?, ?, ?, ?);");
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand("BYTE_ARRAY_VALUES", "ID, TIMESTAMP, VALUE, FLAG", recordTimestamps) + " VALUES(?, ?, ?, ?);");
 		
 		try {
-			for (LogRecordContainer logRecordContainer : containers) {
+			for (LogRecordContainer logRecordContainer : getBatchContainers(containers, recordTimestamps)) {
 
 				if(isContainerValid(logRecordContainer)) {
 					statement.setString(1, logRecordContainer.getChannelId());
-					statement.setTimestamp(2, sqlTimestamp);
-					statement.setString(3, logRecordContainer.getRecord().getValue().asString());
+					statement.setTimestamp(2, getTimestamp(logRecordContainer, sqlTimestamp, recordTimestamps));
+					statement.setBytes(3, logRecordContainer.getRecord().getValue().asByteArray());
 					
 					if (logRecordContainer.getRecord().getFlag() != null) {
 						statement.setInt(4, logRecordContainer.getRecord().getFlag().getCode());
@@ -236,185 +391,975 @@ public class DatabaseWrapper {
 			}
 			
 			statement.executeBatch();
+			updateLatestTimestamps(containers, sqlTimestamp, recordTimestamps);
 		} finally {
+			invalidateCachedRecords(containers, sqlTimestamp, recordTimestamps);
 			if(statement!=null) statement.close();
 		}
 	}
 	
 	/**
-	 * Gets the records for the specified channel in the specified time span.
+	 * Writes the specified records of one channel with their timestamps, independent of the record timestamp
+	 * setting. Existing records with the same channel id and timestamp will be replaced. The values will be
+	 * written directly from the columns without creating record objects.
 	 * @param channelId the channel id
-	 * @param startTime start time
-	 * @param endTime end time
-	 * @return list of records
+	 * @param columns records of a numeric or boolean channel in timestamp order
 	 * @throws SQLException if any error occurs
 	 */
-	public synchronized List<Record> getRecords(String channelId, long startTime, long endTime) throws SQLException {
-		
-		List<Record> records = new ArrayList<>();
-		
-		String valueTypeString = getChannelValueType(channelId);
-		if(valueTypeString==null) {
-			// channel not found in database
-			return records;
-		}
-		ValueType valueType = ValueType.valueOf(valueTypeString);
-		
-		PreparedStatement statement = null;
+	public synchronized void logRecordColumns(String channelId, RecordColumns columns) throws SQLException {
 		
-		switch (valueType) {
-		case LONG:
-			statement = connection.prepareStatement("SELECT * FROM LONG_VALUES WHERE ID=? AND TIMESTAMP BETWEEN ? AND ?;");
-			break;
-		case INTEGER:
-		case SHORT:
-		case BYTE:
-			statement = connection.prepareStatement("SELECT * FROM INT_VALUES WHERE ID=? AND TIMESTAMP BETWEEN ? AND ?;");
-			break;
-		case BOOLEAN:
-			statement = connection.prepareStatement("SELECT * FROM BOOL_VALUES WHERE ID=? AND TIMESTAMP BETWEEN ? AND ?;");
-			break;
-		case BYTE_ARRAY:
-		case STRING:
-			statement = connection.prepareStatement("SELECT * FROM STRING_VALUES WHERE ID=? AND TIMESTAMP BETWEEN ? AND ?;");
-			break;
-		default:
-			statement = connection.prepareStatement("SELECT * FROM DOUBLE_VALUES WHERE ID=? AND TIMESTAMP BETWEEN ? AND ?;");
-			break;
-		}
+		int size = columns.getSize();
+		if(size==0) return;
 		
-		statement.setString(1, channelId);
-		statement.setTimestamp(2, new Timestamp(startTime));
-		statement.setTimestamp(3, new Timestamp(endTime));
+		ValueType valueType = columns.getValueType();
+		long[] timestamps = columns.getTimestamps();
+		byte[] flags = columns.getFlags();
 		
-		ResultSet result = null;
-		Value value = null;
+		PreparedStatement statement = connection.prepareStatement(getInsertCommand(getTableName(valueType), "ID, TIMESTAMP, VALUE, FLAG", true) + " VALUES(?, ?, ?, ?);");
 		
 		try {
-			result = statement.executeQuery();
-			
-			while (result.next()) {
+			for (int i = 0; i < size; i++) {
+				statement.setString(1, channelId);
+				statement.setTimestamp(2, new Timestamp(timestamps[i]));
+				
 				switch (valueType) {
 				case LONG:
-					value = new LongValue(result.getLong("VALUE"));
+					statement.setLong(3, columns.getLongValues()[i]);
 					break;
 				case INTEGER:
 				case SHORT:
 				case BYTE:
-					value = new IntValue(result.getInt("VALUE"));
+					statement.setInt(3, columns.getIntValues()[i]);
 					break;
 				case BOOLEAN:
-					value = new BooleanValue(result.getBoolean("VALUE"));
-					break;
-				case BYTE_ARRAY:
-				case STRING:
-					value = new StringValue(result.getString("VALUE"));
+					statement.setBoolean(3, columns.getBooleanValues()[i]);
 					break;
 				default:
-					value = new DoubleValue(result.getDouble("VALUE"));
+					statement.setDouble(3, columns.getDoubleValues()[i]);
 					break;
 				}
-					
-				long timestamp = result.getTimestamp("TIMESTAMP").getTime();
-				Flag flag = Flag.newFlag(result.getInt("FLAG"));
-				Record record = new Record(value, timestamp, flag);
-				records.add(record);
-			} 
+				
+				statement.setInt(4, flags[i]);
+				statement.addBatch();
+			}
+			
+			statement.executeBatch();
+			
+			Long latestTimestamp = latestTimestamps.get(channelId);
+			if(latestTimestamp==null || latestTimestamp<timestamps[size-1]) {
+				updateLatestTimestamps(Collections.singletonMap(channelId, timestamps[size-1]));
+			}
 		} finally {
-			if(result!=null) result.close();
-			if(statement!=null) statement.close();
+			recordCache.invalidate(channelId, timestamps[0], timestamps[size-1]);
+			statement.close();
 		}
+	}
+	
+	/**
+	 * Gets the records for the specified channel in the specified time span.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @return list of records
+	 * @throws SQLException if any error occurs
+	 */
+	public List<Record> getRecords(String channelId, long startTime, long endTime) throws SQLException {
 		
-		return records;
+		// cache hits don't need the database lock
+		RecordColumns columns = recordCache.get(channelId, startTime, endTime);
+		if(columns==null) columns = queryRecordColumns(channelId, startTime, endTime, false);
+		
+		return columns.toRecords();
 	}
 	
 	/**
-	 * Deletes all records that are older than the specified timestamp.
-	 * @param timestamp
-	 * @throws SQLException
+	 * Gets the records for the specified channel in the specified time span in columnar form. The columns
+	 * will be filled directly from the database without creating record and value objects.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @return the records, the value type of the columns is <code>null</code> if the channel doesn't exist
+	 * @throws SQLException if any error occurs
 	 */
-	public synchronized int deleteRecordsBefore(long timestamp) throws SQLException {
+	public RecordColumns getRecordColumns(String channelId, long startTime, long endTime) throws SQLException {
 		
-		PreparedStatement statement = null;
-		int result = 0;
+		RecordColumns columns = recordCache.get(channelId, startTime, endTime);
+		if(columns!=null) {
+			// cached columns are shared and must not be modified by the caller
+			return columns.copy();
+		}
 		
-		try {
-			statement = connection.prepareStatement("DELETE FROM DOUBLE_VALUES WHERE TIMESTAMP<?");
-			statement.setTimestamp(1, new Timestamp(timestamp));
-			result = result + statement.executeUpdate();
-		} finally {
-			if(statement!=null) statement.close();
+		return queryRecordColumns(channelId, startTime, endTime, true);
+	}
+	
+	/**
+	 * Streams the records for the specified channel in the specified time span in chunks. The chunks will be
+	 * filled directly from the result set and reused, so only one chunk is held in memory at a time. The
+	 * database is locked until all chunks have been handled. Streamed results will not be cached.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @param chunkSize maximum number of records per chunk
+	 * @param handler handler for the chunks
+	 * @throws SQLException if any error occurs
+	 */
+	public synchronized void getRecordColumns(String channelId, long startTime, long endTime, int chunkSize, RecordColumnsHandler handler) throws SQLException {
+		
+		String valueTypeString = getChannelValueType(channelId);
+		if(valueTypeString==null) {
+			// channel not found in database
+			return;
 		}
+		ValueType valueType = ValueType.valueOf(valueTypeString);
+		
+		RecordColumns columns = new RecordColumns(valueType, chunkSize);
+		PreparedStatement statement = prepareColumnsQuery(channelId, startTime, endTime, valueType);
+		ResultSet result = null;
 		
 		try {
-			statement = connection.prepareStatement("DELETE FROM LONG_VALUES WHERE TIMESTAMP<?");
-			statement.setTimestamp(1, new Timestamp(timestamp));
-			result = result + statement.executeUpdate();
+			result = statement.executeQuery();
+			
+			while (result.next()) {
+				addRow(result, columns, valueType);
+				if(columns.getSize()==chunkSize) {
+					handler.handle(columns);
+					columns.clear();
+				}
+			}
+			
+			if(columns.getSize()>0) handler.handle(columns);
 		} finally {
-			if(statement!=null) statement.close();
+			if(result!=null) result.close();
+			statement.close();
 		}
+	}
+	
+	/**
+	 * Queries the records for the specified channel in the specified time span and caches the result if the
+	 * time span is historical.
+	 * @param modifiable true if the caller may modify the returned columns, cached columns will be copied then
+	 */
+	private synchronized RecordColumns queryRecordColumns(String channelId, long startTime, long endTime, boolean modifiable) throws SQLException {
 		
-		try {
-			statement = connection.prepareStatement("DELETE FROM INT_VALUES WHERE TIMESTAMP<?");
-			statement.setTimestamp(1, new Timestamp(timestamp));
-			result = result + statement.executeUpdate();
-		} finally {
-			if(statement!=null) statement.close();
+		String valueTypeString = getChannelValueType(channelId);
+		if(valueTypeString==null) {
+			// channel not found in database
+			return new RecordColumns(null, 0);
 		}
+		ValueType valueType = ValueType.valueOf(valueTypeString);
+		
+		RecordColumns columns = new RecordColumns(valueType);
+		PreparedStatement statement = prepareColumnsQuery(channelId, startTime, endTime, valueType);
+		ResultSet result = null;
 		
 		try {
-			statement = connection.prepareStatement("DELETE FROM BOOL_VALUES WHERE TIMESTAMP<?");
-			statement.setTimestamp(1, new Timestamp(timestamp));
-			result = result + statement.executeUpdate();
+			result = statement.executeQuery();
+			
+			while (result.next()) {
+				addRow(result, columns, valueType);
+			} 
 		} finally {
-			if(statement!=null) statement.close();
+			if(result!=null) result.close();
+			statement.close();
 		}
 		
-		try {
-			statement = connection.prepareStatement("DELETE FROM STRING_VALUES WHERE TIMESTAMP<?");
-			statement.setTimestamp(1, new Timestamp(timestamp));
-			result = result + statement.executeUpdate();
-		} finally {
-			if(statement!=null) statement.close();
+		// only historical time spans will be cached, later changes are handled by invalidation
+		if(endTime<System.currentTimeMillis()-MIN_CACHE_AGE && recordCache.put(channelId, startTime, endTime, columns) && modifiable) {
+			// cached columns are shared and must not be modified by the caller
+			return columns.copy();
 		}
-			
-		return result;
+		
+		return columns;
 	}
 	
-	private String getChannelValueType(String channelId) throws SQLException {
+	/**
+	 * Gets the most recent record of the specified channel. The timestamp of the latest record is kept
+	 * in the LATEST_RECORDS table, so the record is read by primary key.
+	 * @param channelId the channel id
+	 * @return the latest record or <code>null</code> if the channel has no records
+	 * @throws SQLException if any error occurs
+	 */
+	public synchronized Record getLatestRecord(String channelId) throws SQLException {
 		
-		PreparedStatement statement = connection.prepareStatement("SELECT VALUE_TYPE FROM CHANNELS WHERE ID=?;");
-		statement.setString(1, channelId);
+		String valueTypeString = getChannelValueType(channelId);
+		if(valueTypeString==null) {
+			// channel not found in database
+			return null;
+		}
+		
+		return getLatestRecord(channelId, ValueType.valueOf(valueTypeString));
+	}
+	
+	/**
+	 * Gets the record of the specified channel that was in effect at the specified time, that is
+	 * the latest record with a timestamp at or before the specified time.
+	 * @param channelId the channel id
+	 * @param timestamp point in time
+	 * @return the record in effect or <code>null</code> if there is no record at or before the specified time
+	 * @throws SQLException if any error occurs
+	 */
+	public synchronized Record getRecordAt(String channelId, long timestamp) throws SQLException {
+		
+		String valueTypeString = getChannelValueType(channelId);
+		if(valueTypeString==null) {
+			// channel not found in database
+			return null;
+		}
+		ValueType valueType = ValueType.valueOf(valueTypeString);
+		
+		Long latestTimestamp = latestTimestamps.get(channelId);
+		if(latestTimestamp==null) return null;
+		if(latestTimestamp<=timestamp) return getRecord(channelId, valueType, latestTimestamp);
+		
+		// the search ends at the first record, so there is no scan back to epoch if there is no record before
+		Long earliestTimestamp = getEarliestTimestamp(channelId, valueType);
+		if(earliestTimestamp==null || earliestTimestamp>timestamp) return null;
+		
+		// H2 doesn't seek backwards in an index, so the time before the requested time is searched in
+		// windows of growing size and each query only reads the rows of its window
+		PreparedStatement statement = connection.prepareStatement("SELECT MAX(TIMESTAMP) FROM " + getTableName(valueType) + " WHERE ID=? AND TIMESTAMP>? AND TIMESTAMP<=?;");
 		
 		try {
-			ResultSet result = statement.executeQuery();
-			if (result.next()) {
-				return result.getString("VALUE_TYPE");
-			} else {
-				return null;
-			} 
+			statement.setString(1, channelId);
+			
+			long end = timestamp;
+			long window = RECORD_AT_WINDOW;
+			
+			while (end>=earliestTimestamp) {
+				long start = Math.max(end-window, earliestTimestamp-1);
+				statement.setTimestamp(2, new Timestamp(start));
+				statement.setTimestamp(3, new Timestamp(end));
+				
+				ResultSet result = statement.executeQuery();
+				Timestamp recordTimestamp = result.next() ? result.getTimestamp(1) : null;
+				result.close();
+				
+				if(recordTimestamp!=null) return getRecord(channelId, valueType, recordTimestamp.getTime());
+				
+				end = start;
+				window *= 2;
+			}
 		} finally {
 			statement.close();
 		}
 		
+		return null;
 	}
 	
-	private void createTables() throws SQLException {
+	/**
+	 * Gets the most recent record of every channel stored in the channel information table.
+	 * @return map of channel ids and their latest records, channels without records are omitted
+	 * @throws SQLException if any error occurs
+	 */
+	public synchronized Map<String, Record> getLatestRecords() throws SQLException {
 		
+		Map<String, ValueType> channels = new HashMap<>();
 		Statement statement = null;
+		ResultSet result = null;
 		
 		try {
 			statement = connection.createStatement();
-			statement.execute("CREATE TABLE IF NOT EXISTS CHANNELS(ID VARCHAR(255) PRIMARY KEY, DESCRIPTION VARCHAR(255), UNIT VARCHAR(255), LAST_INIT TIMESTAMP, VALUE_TYPE VARCHAR(32));");
-			statement.execute("CREATE TABLE IF NOT EXISTS DOUBLE_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE DOUBLE, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
-			statement.execute("CREATE TABLE IF NOT EXISTS LONG_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE BIGINT, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
-			statement.execute("CREATE TABLE IF NOT EXISTS INT_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE INT, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
-			statement.execute("CREATE TABLE IF NOT EXISTS BOOL_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE BOOLEAN, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
-			statement.execute("CREATE TABLE IF NOT EXISTS STRING_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE VARCHAR(1024), FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+			result = statement.executeQuery("SELECT ID, VALUE_TYPE FROM CHANNELS;");
+			while (result.next()) {
+				channels.put(result.getString("ID"), ValueType.valueOf(result.getString("VALUE_TYPE")));
+			}
 		} finally {
+			if(result!=null) result.close();
 			if(statement!=null) statement.close();
 		}
-				
+		
+		Map<String, Record> records = new HashMap<>();
+		for (Map.Entry<String, ValueType> channel : channels.entrySet()) {
+			Record record = getLatestRecord(channel.getKey(), channel.getValue());
+			if(record!=null) records.put(channel.getKey(), record);
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Deletes all records that are older than the specified timestamp.
+	 * @param timestamp
+	 * @throws SQLException
+	 */
+	public synchronized int deleteRecordsBefore(long timestamp) throws SQLException {
+		
+		PreparedStatement statement = null;
+		int result = 0;
+		
+		for (String table : VALUE_TABLES) {
+			try {
+				statement = connection.prepareStatement("DELETE FROM " + table + " WHERE TIMESTAMP<?");
+				statement.setTimestamp(1, new Timestamp(timestamp));
+				result = result + statement.executeUpdate();
+			} finally {
+				if(statement!=null) statement.close();
+			}
+		}
+		
+		// channels whose latest record has been deleted don't have records any more
+		try {
+			statement = connection.prepareStatement("DELETE FROM LATEST_RECORDS WHERE TIMESTAMP<?");
+			statement.setTimestamp(1, new Timestamp(timestamp));
+			statement.executeUpdate();
+		} finally {
+			statement.close();
+		}
+		
+		Iterator<Long> iterator = latestTimestamps.values().iterator();
+		while (iterator.hasNext()) {
+			if(iterator.next()<timestamp) iterator.remove();
+		}
+		
+		recordCache.invalidateBefore(timestamp);
+			
+		return result;
+	}
+	
+	/**
+	 * Compacts the database file online. Chunks with a low fill rate will be rewritten and moved to the
+	 * beginning of the file, which frees the space of deleted records. Writing and reading is blocked
+	 * while compacting, so the time is limited by the specified budget.
+	 * @param maxCompactTime maximum time in milliseconds used for compaction
+	 * @throws SQLException if any error occurs
+	 */
+	public synchronized void compact(long maxCompactTime) throws SQLException {
+		
+		if(!(connection instanceof JdbcConnection)) throw new SQLException("Compaction is not supported for this connection");
+		
+		Session session = (Session) ((JdbcConnection) connection).getSession();
+		MVTableEngine.Store store = session.getDatabase().getMvStore();
+		
+		if(store==null || !session.getDatabase().isPersistent()) {
+			// in-memory or page store database, nothing to compact
+			return;
+		}
+		
+		// compactFile disables the retention time, so that freed chunks can be reused at once, and doesn't restore it. Without
+		// retention time, chunks may be overwritten before the new chunks have been written completely, which isn't safe on power loss.
+		MVStore mvStore = store.getStore();
+		int retentionTime = mvStore.getRetentionTime();
+		
+		try {
+			store.compactFile(maxCompactTime);
+		} finally {
+			mvStore.setRetentionTime(retentionTime);
+		}
+	}
+	
+	private String getChannelValueType(String channelId) throws SQLException {
+		
+		PreparedStatement statement = connection.prepareStatement("SELECT VALUE_TYPE FROM CHANNELS WHERE ID=?;");
+		statement.setString(1, channelId);
+		
+		try {
+			ResultSet result = statement.executeQuery();
+			if (result.next()) {
+				return result.getString("VALUE_TYPE");
+			} else {
+				return null;
+			} 
+		} finally {
+			statement.close();
+		}
+		
+	}
+	
+	private Record getLatestRecord(String channelId, ValueType valueType) throws SQLException {
+		
+		Long latestTimestamp = latestTimestamps.get(channelId);
+		if(latestTimestamp==null) return null;
+		
+		return getRecord(channelId, valueType, latestTimestamp);
+	}
+	
+	/**
+	 * Gets the record with the specified primary key.
+	 * @return the record or <code>null</code> if it doesn't exist
+	 */
+	/**
+	 * Gets the timestamp of the first record of the specified channel. The query seeks forward in the primary key.
+	 * @return the timestamp or <code>null</code> if there are no records
+	 */
+	private Long getEarliestTimestamp(String channelId, ValueType valueType) throws SQLException {
+		
+		PreparedStatement statement = connection.prepareStatement("SELECT TIMESTAMP FROM " + getTableName(valueType) + " WHERE ID=? ORDER BY ID, TIMESTAMP LIMIT 1;");
+		ResultSet result = null;
+		
+		try {
+			statement.setString(1, channelId);
+			result = statement.executeQuery();
+			if (result.next()) {
+				return result.getTimestamp(1).getTime();
+			} else {
+				return null;
+			}
+		} finally {
+			if(result!=null) result.close();
+			statement.close();
+		}
+	}
+	
+	private Record getRecord(String channelId, ValueType valueType, long timestamp) throws SQLException {
+		
+		PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + getTableName(valueType) + " WHERE ID=? AND TIMESTAMP=?;");
+		ResultSet result = null;
+		
+		try {
+			statement.setString(1, channelId);
+			statement.setTimestamp(2, new Timestamp(timestamp));
+			result = statement.executeQuery();
+			if (result.next()) {
+				return getRecord(result, valueType);
+			} else {
+				return null;
+			}
+		} finally {
+			if(result!=null) result.close();
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Creates a record from the current row of the specified result set.
+	 * 
+	 * @param result result set positioned on a row of a value table
+	 * @param valueType the value type of the channel
+	 * @return the record
+	 * @throws SQLException if any error occurs
+	 */
+	private Record getRecord(ResultSet result, ValueType valueType) throws SQLException {
+		
+		Value value = null;
+		
+		switch (valueType) {
+		case LONG:
+			value = new LongValue(result.getLong("VALUE"));
+			break;
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			value = new IntValue(result.getInt("VALUE"));
+			break;
+		case BOOLEAN:
+			value = new BooleanValue(result.getBoolean("VALUE"));
+			break;
+		case BYTE_ARRAY:
+			value = new ByteArrayValue(result.getBytes("VALUE"));
+			break;
+		case STRING:
+			int code = result.getInt("CODE");
+			if (result.wasNull()) {
+				value = new StringValue(result.getString("VALUE"));
+			} else {
+				// dictionary encoded, all records share the cached string instance
+				value = new StringValue(dictionaryStrings.get(code));
+			}
+			break;
+		default:
+			value = new DoubleValue(result.getDouble("VALUE"));
+			break;
+		}
+		
+		long timestamp = result.getTimestamp("TIMESTAMP").getTime();
+		Flag flag = Flag.newFlag(result.getInt("FLAG"));
+		return new Record(value, timestamp, flag);
+	}
+	
+	private PreparedStatement prepareColumnsQuery(String channelId, long startTime, long endTime, ValueType valueType) throws SQLException {
+		
+		// string values may be dictionary encoded
+		String valueColumns = valueType==ValueType.STRING ? "VALUE, CODE" : "VALUE";
+		// ordered like the (ID, TIMESTAMP) primary key, otherwise H2 may prefer the already sorted TIMESTAMP index
+		// and scan the records of all channels in the time span
+		PreparedStatement statement = connection.prepareStatement("SELECT TIMESTAMP, FLAG, " + valueColumns + " FROM " + getTableName(valueType) + " WHERE ID=? AND TIMESTAMP BETWEEN ? AND ? ORDER BY ID, TIMESTAMP;");
+		
+		statement.setString(1, channelId);
+		statement.setTimestamp(2, new Timestamp(startTime));
+		statement.setTimestamp(3, new Timestamp(endTime));
+		
+		return statement;
+	}
+	
+	/**
+	 * Adds the current row of the specified result set to the columns. The result set must contain the
+	 * TIMESTAMP, FLAG and VALUE columns in this order, followed by the CODE column for string values.
+	 */
+	private void addRow(ResultSet result, RecordColumns columns, ValueType valueType) throws SQLException {
+		
+		int index = columns.add(result.getTimestamp(1).getTime(), (byte) result.getInt(2));
+		
+		switch (valueType) {
+		case LONG:
+			columns.setLong(index, result.getLong(3));
+			break;
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			columns.setInt(index, result.getInt(3));
+			break;
+		case BOOLEAN:
+			columns.setBoolean(index, result.getBoolean(3));
+			break;
+		case BYTE_ARRAY:
+			columns.setByteArray(index, result.getBytes(3));
+			break;
+		case STRING:
+			int code = result.getInt(4);
+			if (result.wasNull()) {
+				columns.setString(index, result.getString(3));
+			} else {
+				columns.setString(index, dictionaryStrings.get(code));
+			}
+			break;
+		default:
+			columns.setDouble(index, result.getDouble(3));
+			break;
+		}
+	}
+	
+	/**
+	 * Returns the name of the table that stores values of the specified type.
+	 * 
+	 * @param valueType the OpenMUC value type
+	 * @return the table name
+	 */
+	private String getTableName(ValueType valueType) {
+		
+		switch (valueType) {
+		case LONG:
+			return "LONG_VALUES";
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			return "INT_VALUES";
+		case BOOLEAN:
+			return "BOOL_VALUES";
+		case BYTE_ARRAY:
+			return "BYTE_ARRAY_VALUES";
+		case STRING:
+			return "STRING_VALUES";
+		default:
+			return "DOUBLE_VALUES";
+		}
+	}
+	
+	private void createTables() throws SQLException {
+		
+		Statement statement = null;
+		
+		try {
+			statement = connection.createStatement();
+			statement.execute("CREATE TABLE IF NOT EXISTS CHANNELS(ID VARCHAR(255) PRIMARY KEY, DESCRIPTION VARCHAR(255), UNIT VARCHAR(255), LAST_INIT TIMESTAMP, VALUE_TYPE VARCHAR(32));");
+			statement.execute("CREATE TABLE IF NOT EXISTS DOUBLE_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE DOUBLE, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+			statement.execute("CREATE TABLE IF NOT EXISTS LONG_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE BIGINT, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+			statement.execute("CREATE TABLE IF NOT EXISTS INT_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE INT, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+			statement.execute("CREATE TABLE IF NOT EXISTS BOOL_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE BOOLEAN, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+			statement.execute("CREATE TABLE IF NOT EXISTS STRING_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE VARCHAR(1024), FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+			statement.execute("CREATE TABLE IF NOT EXISTS SCHEMA_INFO(ID INT PRIMARY KEY, VERSION INT);");
+		} finally {
+			if(statement!=null) statement.close();
+		}
+				
+	}
+	
+	/**
+	 * Migrates the database schema from the stored schema version to {@link #SCHEMA_VERSION}. Each
+	 * migration step is applied and recorded separately, so an interrupted migration will be continued
+	 * with the next connect.
+	 * @throws SQLException if any error occurs or the database has been created by a newer version
+	 */
+	private void migrateSchema() throws SQLException {
+		
+		int version = getSchemaVersion();
+		
+		if(version > SCHEMA_VERSION) {
+			// records written in a newer format would be read incorrectly (e.g. dictionary encoded strings)
+			throw new SQLException("Database schema version " + version + " is newer than the supported schema version " + SCHEMA_VERSION);
+		}
+		
+		while (version < SCHEMA_VERSION) {
+			version++;
+			
+			// data changes of a step will be committed together with the new version, DDL statements are
+			// committed implicitly by H2 and must be idempotent
+			connection.setAutoCommit(false);
+			
+			try {
+				migrateSchema(version);
+				setSchemaVersion(version);
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+	
+	/**
+	 * Applies the changes that are necessary to get from the previous schema version to the specified version.
+	 * Data changes have to be executed after all DDL statements of a step, because DDL statements commit the
+	 * current transaction.
+	 * @param version the target schema version
+	 * @throws SQLException if any error occurs
+	 */
+	private void migrateSchema(int version) throws SQLException {
+		
+		Statement statement = null;
+		
+		try {
+			statement = connection.createStatement();
+			
+			switch (version) {
+			case 1:
+				// timestamp leading index for time-only access like exports and the periodical cleanup,
+				// the primary key only supports access by channel
+				for (String table : new String[] { "DOUBLE_VALUES", "LONG_VALUES", "INT_VALUES", "BOOL_VALUES", "STRING_VALUES" }) {
+					statement.execute("CREATE INDEX IF NOT EXISTS " + table + "_TIMESTAMP ON " + table + "(TIMESTAMP);");
+				}
+				break;
+			case 2:
+				// binary values have been stored as text in STRING_VALUES before
+				statement.execute("CREATE TABLE IF NOT EXISTS BYTE_ARRAY_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE VARBINARY, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+				statement.execute("CREATE INDEX IF NOT EXISTS BYTE_ARRAY_VALUES_TIMESTAMP ON BYTE_ARRAY_VALUES(TIMESTAMP);");
+				moveByteArrayValues();
+				break;
+			case 3:
+				// dictionary encoding of repeating strings, rows hold either the text or a dictionary code
+				statement.execute("CREATE TABLE IF NOT EXISTS STRING_DICTIONARY(CODE INT PRIMARY KEY, VALUE VARCHAR(1024) NOT NULL UNIQUE);");
+				statement.execute("ALTER TABLE STRING_VALUES ADD COLUMN IF NOT EXISTS CODE INT;");
+				break;
+			case 4:
+				// timestamp of the latest record of each channel, so the latest record can be read by primary key
+				// instead of scanning all records of the channel
+				statement.execute("CREATE TABLE IF NOT EXISTS LATEST_RECORDS(ID VARCHAR(255) PRIMARY KEY, TIMESTAMP TIMESTAMP);");
+				for (ValueType valueType : ValueType.values()) {
+					statement.execute("MERGE INTO LATEST_RECORDS(ID, TIMESTAMP) KEY(ID) SELECT ID, MAX(TIMESTAMP) FROM " + getTableName(valueType)
+							+ " WHERE ID IN (SELECT ID FROM CHANNELS WHERE VALUE_TYPE='" + valueType.name() + "') GROUP BY ID;");
+				}
+				break;
+			default:
+				throw new SQLException("Unknown database schema version " + version);
+			}
+		} finally {
+			if(statement!=null) statement.close();
+		}
+	}
+	
+	/**
+	 * Moves the existing records of byte array channels from STRING_VALUES to BYTE_ARRAY_VALUES and converts
+	 * their stored text back to the original bytes, see {@link #parseByteArray(String)}.
+	 * @throws SQLException if any error occurs
+	 */
+	private void moveByteArrayValues() throws SQLException {
+		
+		Statement statement = connection.createStatement();
+		PreparedStatement insertStatement = connection.prepareStatement("MERGE INTO BYTE_ARRAY_VALUES(ID, TIMESTAMP, VALUE, FLAG) KEY(ID, TIMESTAMP) VALUES(?, ?, ?, ?);");
+		
+		try {
+			ResultSet result = statement.executeQuery("SELECT ID, TIMESTAMP, VALUE, FLAG FROM STRING_VALUES WHERE ID IN (SELECT ID FROM CHANNELS WHERE VALUE_TYPE='BYTE_ARRAY');");
+			int batchSize = 0;
+			
+			while (result.next()) {
+				insertStatement.setString(1, result.getString("ID"));
+				insertStatement.setTimestamp(2, result.getTimestamp("TIMESTAMP"));
+				insertStatement.setBytes(3, parseByteArray(result.getString("VALUE")));
+				insertStatement.setInt(4, result.getInt("FLAG"));
+				insertStatement.addBatch();
+				
+				if(++batchSize==1000) {
+					insertStatement.executeBatch();
+					batchSize = 0;
+				}
+			}
+			
+			if(batchSize>0) insertStatement.executeBatch();
+			result.close();
+			
+			statement.execute("DELETE FROM STRING_VALUES WHERE ID IN (SELECT ID FROM CHANNELS WHERE VALUE_TYPE='BYTE_ARRAY');");
+		} finally {
+			insertStatement.close();
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Converts a byte array that has been stored as text before schema version 2. The text is the rendering
+	 * of <code>ByteArrayValue.asString()</code>, a list of signed decimal bytes like <code>[1, -2, 3]</code>.
+	 * Text in other formats will be converted to its UTF-8 bytes.
+	 * @param text the stored text
+	 * @return the bytes
+	 */
+	private static byte[] parseByteArray(String text) {
+		
+		if(text==null) return null;
+		
+		String trimmed = text.trim();
+		if(trimmed.startsWith("[") && trimmed.endsWith("]")) {
+			String content = trimmed.substring(1, trimmed.length()-1).trim();
+			if(content.isEmpty()) return new byte[0];
+			
+			String[] elements = content.split(",");
+			byte[] bytes = new byte[elements.length];
+			
+			try {
+				for (int i = 0; i < elements.length; i++) {
+					bytes[i] = Byte.parseByte(elements[i].trim());
+				}
+				return bytes;
+			} catch (NumberFormatException e) {
+				// not a list of bytes
+			}
+		}
+		
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private int getSchemaVersion() throws SQLException {
+		
+		Statement statement = connection.createStatement();
+		
+		try {
+			ResultSet result = statement.executeQuery("SELECT VERSION FROM SCHEMA_INFO WHERE ID=0;");
+			if (result.next()) {
+				return result.getInt("VERSION");
+			} else {
+				// databases created before schema versioning was introduced
+				return 0;
+			}
+		} finally {
+			statement.close();
+		}
+	}
+	
+	private void setSchemaVersion(int version) throws SQLException {
+		
+		PreparedStatement statement = connection.prepareStatement("MERGE INTO SCHEMA_INFO(ID, VERSION) KEY(ID) VALUES(0, ?);");
+		
+		try {
+			statement.setInt(1, version);
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Loads the string dictionary into memory. Codes are assigned in ascending order starting with zero,
+	 * so the code is the index in the list of dictionary strings.
+	 * @throws SQLException if any error occurs
+	 */
+	private void loadStringDictionary() throws SQLException {
+		
+		stringCodes.clear();
+		dictionaryStrings.clear();
+		
+		Statement statement = connection.createStatement();
+		
+		try {
+			ResultSet result = statement.executeQuery("SELECT CODE, VALUE FROM STRING_DICTIONARY ORDER BY CODE;");
+			while (result.next()) {
+				String value = result.getString("VALUE");
+				stringCodes.put(value, result.getInt("CODE"));
+				dictionaryStrings.add(value);
+			}
+		} finally {
+			statement.close();
+		}
+	}
+	
+	private void loadLatestTimestamps() throws SQLException {
+		
+		latestTimestamps.clear();
+		
+		Statement statement = connection.createStatement();
+		
+		try {
+			ResultSet result = statement.executeQuery("SELECT ID, TIMESTAMP FROM LATEST_RECORDS;");
+			while (result.next()) {
+				latestTimestamps.put(result.getString("ID"), result.getTimestamp("TIMESTAMP").getTime());
+			}
+		} finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Gets the dictionary code of the specified string. If the string isn't in the dictionary yet, it will
+	 * be added when it's logged the second time for the same channel and the dictionary isn't full. One-off
+	 * strings like free text therefore don't fill up the dictionary.
+	 * @param channelId the channel id of the record
+	 * @param value the string
+	 * @return the dictionary code or <code>null</code> if the string should be stored as text
+	 * @throws SQLException if any error occurs
+	 */
+	private Integer getStringCode(String channelId, String value) throws SQLException {
+		
+		if(value==null) return null;
+		
+		Integer code = stringCodes.get(value);
+		if(code!=null) return code;
+		
+		if(dictionaryStrings.size()>=stringDictionarySize || value.length()>1024) return null;
+		
+		Set<String> candidates = stringCandidates.get(channelId);
+		if(candidates==null) {
+			candidates = new HashSet<>();
+			stringCandidates.put(channelId, candidates);
+		}
+		
+		if(candidates.add(value)) {
+			// first occurrence, channels with many distinct strings only keep the most recent one
+			if(candidates.size()>MAX_STRING_CANDIDATES) {
+				candidates.clear();
+				candidates.add(value);
+			}
+			return null;
+		}
+		
+		candidates.remove(value);
+		
+		code = dictionaryStrings.size();
+		PreparedStatement statement = connection.prepareStatement("INSERT INTO STRING_DICTIONARY(CODE, VALUE) VALUES(?, ?);");
+		
+		try {
+			statement.setInt(1, code);
+			statement.setString(2, value);
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+		
+		stringCodes.put(value, code);
+		dictionaryStrings.add(value);
+		
+		return code;
+	}
+	
+	/**
+	 * Returns the beginning of the insert command for the specified value table. If record timestamps are
+	 * used, existing records will be replaced instead of failing the batch with a primary key violation.
+	 * @param table the value table
+	 * @param columns comma separated list of columns
+	 * @param recordTimestamps true if record timestamps are used
+	 * @return insert command without values clause
+	 */
+	private String getInsertCommand(String table, String columns, boolean recordTimestamps) {
+		
+		if(recordTimestamps) {
+			return "MERGE INTO " + table + "(" + columns + ") KEY(ID, TIMESTAMP)";
+		} else {
+			return "INSERT INTO " + table + "(" + columns + ")";
+		}
+	}
+	
+	/**
+	 * Returns the containers that should be written in one batch. If record timestamps are used, the containers
+	 * will be sorted by channel id and timestamp to keep index inserts in key order, and only the last container
+	 * for a channel id and timestamp will be kept.
+	 * @param containers containers to log
+	 * @param recordTimestamps true if record timestamps are used
+	 * @return containers to write
+	 */
+	private List<LogRecordContainer> getBatchContainers(List<LogRecordContainer> containers, boolean recordTimestamps) {
+		
+		if(!recordTimestamps) return containers;
+		
+		List<LogRecordContainer> sorted = new ArrayList<>();
+		for (LogRecordContainer logRecordContainer : containers) {
+			if(isContainerValid(logRecordContainer)) sorted.add(logRecordContainer);
+		}
+		
+		// stable sort, so the order of duplicates is the order of the log call
+		Collections.sort(sorted, new Comparator<LogRecordContainer>() {
+			@Override
+			public int compare(LogRecordContainer o1, LogRecordContainer o2) {
+				int result = o1.getChannelId().compareTo(o2.getChannelId());
+				if(result!=0) return result;
+				return o1.getRecord().getTimestamp().compareTo(o2.getRecord().getTimestamp());
+			}
+		});
+		
+		List<LogRecordContainer> batch = new ArrayList<>(sorted.size());
+		for (int i = 0; i < sorted.size(); i++) {
+			if(i+1<sorted.size() && isSameKey(sorted.get(i), sorted.get(i+1))) continue;
+			batch.add(sorted.get(i));
+		}
+		
+		return batch;
+	}
+	
+	private boolean isSameKey(LogRecordContainer container1, LogRecordContainer container2) {
+		return container1.getChannelId().equals(container2.getChannelId())
+				&& container1.getRecord().getTimestamp().equals(container2.getRecord().getTimestamp());
+	}
+	
+	/**
+	 * Stores the timestamps of the specified containers as latest timestamps of their channels if they are
+	 * newer than the known latest timestamps.
+	 */
+	private void updateLatestTimestamps(List<LogRecordContainer> containers, Timestamp callTimestamp, boolean recordTimestamps) throws SQLException {
+		
+		Map<String, Long> timestamps = new HashMap<>();
+		
+		for (LogRecordContainer logRecordContainer : containers) {
+			if(!isContainerValid(logRecordContainer)) continue;
+			
+			String channelId = logRecordContainer.getChannelId();
+			long timestamp = getTimestamp(logRecordContainer, callTimestamp, recordTimestamps).getTime();
+			Long latestTimestamp = timestamps.containsKey(channelId) ? timestamps.get(channelId) : latestTimestamps.get(channelId);
+			
+			if(latestTimestamp==null || latestTimestamp<timestamp) timestamps.put(channelId, timestamp);
+		}
+		
+		updateLatestTimestamps(timestamps);
+	}
+	
+	/**
+	 * Stores the specified timestamps as latest timestamps of their channels.
+	 */
+	private void updateLatestTimestamps(Map<String, Long> timestamps) throws SQLException {
+		
+		if(timestamps.isEmpty()) return;
+		
+		PreparedStatement statement = connection.prepareStatement("MERGE INTO LATEST_RECORDS(ID, TIMESTAMP) KEY(ID) VALUES(?, ?);");
+		
+		try {
+			for (Map.Entry<String, Long> entry : timestamps.entrySet()) {
+				statement.setString(1, entry.getKey());
+				statement.setTimestamp(2, new Timestamp(entry.getValue()));
+				statement.addBatch();
+			}
+			
+			statement.executeBatch();
+			latestTimestamps.putAll(timestamps);
+		} finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Removes the cached query results that contain the records of the specified containers. It has to be called
+	 * even if writing the containers failed, because a part of the records may have been written.
+	 */
+	private void invalidateCachedRecords(List<LogRecordContainer> containers, Timestamp callTimestamp, boolean recordTimestamps) {
+		
+		for (LogRecordContainer logRecordContainer : containers) {
+			if(isContainerValid(logRecordContainer)) {
+				recordCache.invalidate(logRecordContainer.getChannelId(), getTimestamp(logRecordContainer, callTimestamp, recordTimestamps).getTime());
+			}
+		}
+	}
+	
+	private Timestamp getTimestamp(LogRecordContainer container, Timestamp callTimestamp, boolean recordTimestamps) {
+		
+		if(recordTimestamps) {
+			return new Timestamp(container.getRecord().getTimestamp());
+		} else {
+			return callTimestamp;
+		}
 	}
 	
 	/**
@@ -2,13 +2,21 @@ package org.openmucextensions.datalogger.h2;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.openmuc.framework.data.Flag;
 import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.ValueType;
 import org.openmuc.framework.datalogger.spi.DataLoggerService;
 import org.openmuc.framework.datalogger.spi.LogChannel;
 import org.openmuc.framework.datalogger.spi.LogRecordContainer;
@@ -20,14 +28,49 @@ public class H2Logger implements DataLoggerService {
 
 	private static Logger logger = LoggerFactory.getLogger(H2Logger.class);
 	
+	// maximum time read requests wait for the database startup in milliseconds
+	private static final long STARTUP_TIMEOUT = 60*1000;
+	// maximum time the deactivation waits for the database startup in milliseconds
+	private static final long SHUTDOWN_TIMEOUT = 10*1000;
+	
+	private static final String STORAGE_MODE_FILE = "file";
+	private static final String STORAGE_MODE_MEMORY = "memory";
+	private static final String STORAGE_MODE_HYBRID = "hybrid";
+	
 	private DatabaseWrapper database = null;
-	private boolean initSuccessful = false;
+	private volatile boolean initSuccessful = false;
+	private volatile boolean initFailed = false;
+	private Thread startupThread = null;
 	private Timer cleanupTimer = null;
+	private Timer migrationTimer = null;
 	
 	private String databaseFilename = null;
+	private String storageMode;
 	private long storageInterval;
+	private long cleanupPeriod;
+	private long maxCompactTime;
+	private boolean useRecordTimestamps;
+	
+	// recent records of numeric channels in memory and hybrid storage mode
+	private HotStore hotStore = null;
+	private long hotInterval;
+	private long migrationInterval;
+	private long downsampleInterval;
 	
 	private Map<String, LogChannel> channelsToLog = new ConcurrentHashMap<String, LogChannel>();
+	private ConcurrentMap<String, Record> latestRecords = new ConcurrentHashMap<String, Record>();
+	
+	// data that arrives while the database is starting up, guarded by startupLock
+	private final Object startupLock = new Object();
+	private final CountDownLatch startupLatch = new CountDownLatch(1);
+	private final Deque<PendingLog> pendingLogs = new ArrayDeque<>();
+	private int pendingRecordCount = 0;
+	private int startupBufferSize;
+	private List<LogChannel> pendingChannels = null;
+	private boolean deactivated = false;
+	
+	// holds back the database startup, so tests can log records while the database is starting up
+	private CountDownLatch startupGate = null;
 	
 	protected void activate(ComponentContext context) {
 		
@@ -35,31 +78,83 @@ public class H2Logger implements DataLoggerService {
 		
 		databaseFilename = System.getProperty("org.openmucextensions.datalogger.h2.database", "./h2logger/database");
 		
+		storageMode = System.getProperty("org.openmucextensions.datalogger.h2.storageMode", STORAGE_MODE_FILE);
+		hotInterval = Long.parseLong(System.getProperty("org.openmucextensions.datalogger.h2.hotInterval", String.valueOf(1000*60*60*4)));
+		migrationInterval = Long.parseLong(System.getProperty("org.openmucextensions.datalogger.h2.migrationInterval", String.valueOf(1000*60*15)));
+		downsampleInterval = Long.parseLong(System.getProperty("org.openmucextensions.datalogger.h2.downsampleInterval", "0"));
+		
+		if(STORAGE_MODE_MEMORY.equals(storageMode)) {
+			// string and byte array values will be stored in an in-memory database
+			databaseFilename = "mem:h2logger";
+			hotStore = new HotStore();
+		} else if(STORAGE_MODE_HYBRID.equals(storageMode)) {
+			hotStore = new HotStore();
+		} else if(!STORAGE_MODE_FILE.equals(storageMode)) {
+			logger.warn("Unknown storage mode {}, using storage mode {}", storageMode, STORAGE_MODE_FILE);
+			storageMode = STORAGE_MODE_FILE;
+		}
+		
 		String storageIntervalString = System.getProperty("org.openmucextensions.datalogger.h2.storageInterval");
 		if(storageIntervalString!=null) storageInterval = Long.parseLong(storageIntervalString);
 		else storageInterval = 1000*60*60*24*14;
 		
-		try {
-			database = new DatabaseWrapper();
-			database.connect(databaseFilename);
-			initSuccessful = true;
-			
-			if(storageInterval!=0) {
-				cleanupTimer = new Timer("H2Logger Cleanup Timer", true);
-				cleanupTimer.scheduleAtFixedRate(new CleanupTask(database, storageInterval), 10*1000, 1000*60*60*24);
+		cleanupPeriod = Long.parseLong(System.getProperty("org.openmucextensions.datalogger.h2.cleanupPeriod", String.valueOf(1000*60*60*24)));
+		maxCompactTime = Long.parseLong(System.getProperty("org.openmucextensions.datalogger.h2.maxCompactTime", "1000"));
+		startupBufferSize = Integer.parseInt(System.getProperty("org.openmucextensions.datalogger.h2.startupBufferSize", "100000"));
+		useRecordTimestamps = Boolean.parseBoolean(System.getProperty("org.openmucextensions.datalogger.h2.recordTimestamps", "false"));
+		
+		String stringDictionarySizeString = System.getProperty("org.openmucextensions.datalogger.h2.stringDictionarySize");
+		String cacheSizeString = System.getProperty("org.openmucextensions.datalogger.h2.cacheSize");
+		
+		database = new DatabaseWrapper();
+		database.setUseRecordTimestamps(useRecordTimestamps);
+		if(stringDictionarySizeString!=null) database.setStringDictionarySize(Integer.parseInt(stringDictionarySizeString));
+		if(cacheSizeString!=null) database.setCacheSize(Long.parseLong(cacheSizeString));
+		
+		// opening and migrating a large database file can take a while, so it's done in the background
+		startupThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				startup();
 			}
-					
-		} catch (ClassNotFoundException e) {
-			logger.error("H2 database driver not found");
-		} catch (SQLException e) {
-			logger.error("Error while connecting to database: {}", e.getMessage());
-		}
+		}, "H2Logger Startup");
+		startupThread.setDaemon(true);
+		startupThread.start();
 	}
 	
 	protected void deactivate(ComponentContext context) {
 		logger.info("Deactivating H2 logger");
 		
+		if(startupThread!=null) {
+			try {
+				startupThread.join(SHUTDOWN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			synchronized (startupLock) {
+				deactivated = true;
+				
+				if(!initSuccessful && startupThread.isAlive()) {
+					// the database is still being opened and will be closed by the startup thread when it's ready
+					logger.warn("Database startup didn't finish within {} ms, deactivating without waiting", SHUTDOWN_TIMEOUT);
+					if(hotStore!=null) hotStore.clear();
+					return;
+				}
+			}
+		}
+		
 		if(cleanupTimer!=null) cleanupTimer.cancel();
+		if(migrationTimer!=null) migrationTimer.cancel();
+		
+		if(hotStore!=null) {
+			// records in the hot store would be lost otherwise, recent records haven't reached the hot interval
+			// yet and will be written without downsampling
+			if(STORAGE_MODE_HYBRID.equals(storageMode) && initSuccessful) {
+				new MigrationTask(hotStore, database, hotInterval, 0).migrate(Long.MAX_VALUE);
+			}
+			hotStore.clear();
+		}
 		
 		if(database != null)
 			try {
@@ -70,6 +165,76 @@ public class H2Logger implements DataLoggerService {
 			}
 	}
 	
+	/**
+	 * Connects to the database and writes the channel information and the log data that has been
+	 * buffered in the meantime.
+	 */
+	private void startup() {
+		
+		try {
+			if(startupGate!=null) startupGate.await();
+			database.connect(databaseFilename);
+			
+			synchronized (startupLock) {
+				if(deactivated) {
+					// the component has been deactivated while the database was opened
+					database.disconnect();
+					return;
+				}
+				
+				if(pendingChannels!=null) writeChannels(pendingChannels);
+				
+				logger.debug("Writing {} record(s) buffered during startup", pendingRecordCount);
+				for (PendingLog pendingLog : pendingLogs) {
+					writeRecords(pendingLog.containers, pendingLog.timestamp);
+				}
+				
+				pendingChannels = null;
+				pendingLogs.clear();
+				pendingRecordCount = 0;
+				initSuccessful = true;
+				
+				// scheduled while holding the lock, so the deactivation cancels them in any case
+				if(storageInterval!=0) {
+					cleanupTimer = new Timer("H2Logger Cleanup Timer", true);
+					cleanupTimer.scheduleAtFixedRate(new CleanupTask(database, storageInterval, maxCompactTime), 10*1000, cleanupPeriod);
+				}
+				
+				if(hotStore!=null) {
+					DatabaseWrapper coldStore = STORAGE_MODE_HYBRID.equals(storageMode) ? database : null;
+					migrationTimer = new Timer("H2Logger Migration Timer", true);
+					migrationTimer.scheduleAtFixedRate(new MigrationTask(hotStore, coldStore, hotInterval, downsampleInterval), migrationInterval, migrationInterval);
+				}
+			}
+					
+		} catch (ClassNotFoundException e) {
+			logger.error("H2 database driver not found");
+		} catch (SQLException e) {
+			logger.error("Error while connecting to database: {}", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if(!initSuccessful) {
+				synchronized (startupLock) {
+					initFailed = true;
+					pendingChannels = null;
+					pendingLogs.clear();
+					pendingRecordCount = 0;
+				}
+			}
+			startupLatch.countDown();
+		}
+	}
+	
+	/**
+	 * Holds back the database startup until the specified latch has been counted down. Must be set before
+	 * the component is activated, used by tests only.
+	 * @param startupGate the latch
+	 */
+	void setStartupGate(CountDownLatch startupGate) {
+		this.startupGate = startupGate;
+	}
+	
 	@Override
 	public String getId() {
 		return "h2logger";
@@ -79,21 +244,25 @@ public class H2Logger implements DataLoggerService {
 	public void setChannelsToLog(List<LogChannel> channels) {
 		// will be called when OpenMUC starts the logger
 		
-		if(!initSuccessful) {
-			logger.warn("Component initialization wasn't successful, not logging any data");
-			return;
-		}
-		
 		channelsToLog.clear();
 		for (LogChannel logChannel : channels) {
 			channelsToLog.put(logChannel.getId(), logChannel);
-			try {
-				database.addOrUpdateChannel(logChannel);
-			} catch (SQLException e) {
-				logger.error("Error while writing log channel information to database: {}", e.getMessage());
+		}
+		
+		synchronized (startupLock) {
+			if(initFailed) {
+				logger.warn("Component initialization wasn't successful, not logging any data");
+				return;
+			}
+			if(!initSuccessful) {
+				// will be written when the database is ready
+				pendingChannels = new ArrayList<>(channels);
+				return;
 			}
 		}
 		
+		writeChannels(channels);
+		
 		logger.debug("Added {} channel(s) for logging in database", channelsToLog.size());
 
 	}
@@ -101,19 +270,64 @@ public class H2Logger implements DataLoggerService {
 	@Override
 	public void log(List<LogRecordContainer> containers, long timestamp) {
 		
-		if(!initSuccessful) return;
-				
+		synchronized (startupLock) {
+			if(initFailed) return;
+			if(!initSuccessful) {
+				bufferRecords(containers, timestamp);
+				return;
+			}
+		}
+		
+		writeRecords(containers, timestamp);
+	}
+	
+	private void writeChannels(List<LogChannel> channels) {
+		
+		for (LogChannel logChannel : channels) {
+			try {
+				database.addOrUpdateChannel(logChannel);
+			} catch (SQLException e) {
+				logger.error("Error while writing log channel information to database: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Buffers the specified records until the database is ready. If the buffer is full, the oldest
+	 * buffered records will be discarded.
+	 */
+	private void bufferRecords(List<LogRecordContainer> containers, long timestamp) {
+		
+		pendingLogs.addLast(new PendingLog(new ArrayList<>(containers), timestamp));
+		pendingRecordCount += containers.size();
+		
+		while (pendingRecordCount>startupBufferSize && pendingLogs.size()>1) {
+			PendingLog discarded = pendingLogs.removeFirst();
+			pendingRecordCount -= discarded.containers.size();
+			logger.warn("Startup buffer full, discarding {} record(s) logged at {}", discarded.containers.size(), discarded.timestamp);
+		}
+	}
+	
+	private void writeRecords(List<LogRecordContainer> containers, long timestamp) {
+		
 		List<LogRecordContainer> doubleValues = new ArrayList<>();
 		List<LogRecordContainer> longValues = new ArrayList<>();
 		List<LogRecordContainer> intValues = new ArrayList<>();
 		List<LogRecordContainer> boolValues = new ArrayList<>();
 		List<LogRecordContainer> stringValues = new ArrayList<>();
+		List<LogRecordContainer> byteArrayValues = new ArrayList<>();
 		
 		for (LogRecordContainer logRecordContainer : containers) {
 			
 			if(channelsToLog.containsKey(logRecordContainer.getChannelId())) {
 
 				LogChannel channel = channelsToLog.get(logRecordContainer.getChannelId());
+				
+				if(hotStore!=null && HotStore.isSupported(channel.getValueType())
+						&& appendToHotStore(logRecordContainer, channel.getValueType(), timestamp)) {
+					continue;
+				}
+				
 				switch (channel.getValueType()) {
 					case LONG:
 						longValues.add(logRecordContainer);
@@ -127,6 +341,8 @@ public class H2Logger implements DataLoggerService {
 						boolValues.add(logRecordContainer);
 						break;
 					case BYTE_ARRAY:
+						byteArrayValues.add(logRecordContainer);
+						break;
 					case STRING:
 						stringValues.add(logRecordContainer);
 						break;
@@ -142,8 +358,11 @@ public class H2Logger implements DataLoggerService {
 			if(!intValues.isEmpty()) database.logIntValues(intValues, timestamp);
 			if(!boolValues.isEmpty()) database.logBoolValues(boolValues, timestamp);
 			if(!stringValues.isEmpty()) database.logStringValues(stringValues, timestamp);
+			if(!byteArrayValues.isEmpty()) database.logByteArrayValues(byteArrayValues, timestamp);
 			if(!doubleValues.isEmpty()) database.logDoubleValues(doubleValues, timestamp);
 			
+			updateLatestRecords(containers, timestamp);
+			
 		} catch (SQLException e) {
 			logger.error("Error while writing log values to database: {}", e.getMessage());
 		}
@@ -153,7 +372,9 @@ public class H2Logger implements DataLoggerService {
 	@Override
 	public List<Record> getRecords(String channelId, long startTime, long endTime) throws IOException {
 		
-		if(!initSuccessful) throw new IOException("Database initialization wasn't successful, cannot retrieve data");
+		if(hotStore!=null) return getRecordColumns(channelId, startTime, endTime).toRecords();
+		
+		awaitStartup();
 		
 		try {
 			return database.getRecords(channelId, startTime, endTime);
@@ -162,4 +383,225 @@ public class H2Logger implements DataLoggerService {
 		}
 	}
 	
+	/**
+	 * Gets the records for the specified channel in the specified time span in columnar form. Compared to
+	 * {@link #getRecords(String, long, long)}, no record and value objects will be created for each record.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @return the records in timestamp order
+	 * @throws IOException if an error occurs while accessing the database
+	 */
+	public RecordColumns getRecordColumns(String channelId, long startTime, long endTime) throws IOException {
+		
+		awaitStartup();
+		
+		// the hot store has to be read first, records that are moved in the meantime are in the database then
+		RecordColumns hotColumns = hotStore!=null ? hotStore.getRecordColumns(channelId, startTime, endTime) : null;
+		RecordColumns columns;
+		
+		try {
+			columns = database.getRecordColumns(channelId, startTime, endTime);
+		} catch (SQLException e) {
+			throw new IOException("Error while retriving data from database", e);
+		}
+		
+		if(hotColumns!=null) columns = RecordColumns.merge(columns, hotColumns);
+		
+		return columns;
+	}
+	
+	/**
+	 * Streams the records for the specified channel in the specified time span in chunks of columns. Only
+	 * one chunk will be held in memory at a time, the chunks will be handled in timestamp order.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @param chunkSize maximum number of records per chunk
+	 * @param handler handler for the chunks
+	 * @throws IOException if an error occurs while accessing the database
+	 */
+	public void getRecordColumns(String channelId, long startTime, long endTime, int chunkSize, RecordColumnsHandler handler) throws IOException {
+		
+		awaitStartup();
+		
+		RecordColumns hotColumns = hotStore!=null ? hotStore.getRecordColumns(channelId, startTime, endTime) : null;
+		
+		try {
+			if(hotColumns==null || hotColumns.getSize()==0) {
+				database.getRecordColumns(channelId, startTime, endTime, chunkSize, handler);
+				return;
+			}
+			
+			// the time span of the hot store is limited, so it will be merged in memory
+			long hotStart = hotColumns.getTimestamps()[0];
+			if(hotStart>startTime) database.getRecordColumns(channelId, startTime, hotStart-1, chunkSize, handler);
+			
+			RecordColumns columns = RecordColumns.merge(database.getRecordColumns(channelId, hotStart, endTime), hotColumns);
+			RecordColumns chunk = new RecordColumns(columns.getValueType(), chunkSize);
+			
+			for (int i = 0; i < columns.getSize(); i++) {
+				chunk.addFrom(columns, i);
+				if(chunk.getSize()==chunkSize) {
+					handler.handle(chunk);
+					chunk.clear();
+				}
+			}
+			
+			if(chunk.getSize()>0) handler.handle(chunk);
+		} catch (SQLException e) {
+			throw new IOException("Error while retriving data from database", e);
+		}
+	}
+	
+	/**
+	 * Gets the most recent record of the specified channel. The record will be served from the
+	 * in-memory last value table if possible, otherwise it will be read from the database by primary key.
+	 * @param channelId the channel id
+	 * @return the latest record or <code>null</code> if the channel has no records
+	 * @throws IOException if an error occurs while accessing the database
+	 */
+	public Record getLatestRecord(String channelId) throws IOException {
+		
+		awaitStartup();
+		
+		Record record = latestRecords.get(channelId);
+		if(record!=null) return record;
+		
+		try {
+			record = database.getLatestRecord(channelId);
+		} catch (SQLException e) {
+			throw new IOException("Error while retriving data from database", e);
+		}
+		
+		if(record!=null) putLatestRecord(channelId, record);
+		return record;
+	}
+	
+	/**
+	 * Gets the record of the specified channel that was in effect at the specified time.
+	 * @param channelId the channel id
+	 * @param timestamp point in time
+	 * @return the latest record at or before the specified time or <code>null</code> if there is none
+	 * @throws IOException if an error occurs while accessing the database
+	 */
+	public Record getRecordAt(String channelId, long timestamp) throws IOException {
+		
+		awaitStartup();
+		
+		// if the latest known record isn't newer than the requested time, it's the record in effect
+		Record record = latestRecords.get(channelId);
+		if(record!=null && record.getTimestamp()<=timestamp) return record;
+		
+		Record hotRecord = hotStore!=null ? hotStore.getRecordAt(channelId, timestamp) : null;
+		
+		try {
+			// late records are written to the database even if the hot store contains newer records, so the
+			// newer record of both is the one in effect
+			record = database.getRecordAt(channelId, timestamp);
+		} catch (SQLException e) {
+			throw new IOException("Error while retriving data from database", e);
+		}
+		
+		if(hotRecord!=null && (record==null || record.getTimestamp()<=hotRecord.getTimestamp())) return hotRecord;
+		return record;
+	}
+	
+	/**
+	 * Gets the most recent record of every channel in the database.
+	 * @return map of channel ids and their latest records
+	 * @throws IOException if an error occurs while accessing the database
+	 */
+	public Map<String, Record> getLatestRecords() throws IOException {
+		
+		awaitStartup();
+		
+		Map<String, Record> records = new HashMap<>();
+		
+		try {
+			records.putAll(database.getLatestRecords());
+		} catch (SQLException e) {
+			throw new IOException("Error while retriving data from database", e);
+		}
+		
+		// records logged in the meantime are newer than the database snapshot
+		for (Map.Entry<String, Record> entry : latestRecords.entrySet()) {
+			Record record = records.get(entry.getKey());
+			if(record==null || record.getTimestamp()<entry.getValue().getTimestamp()) {
+				records.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Appends the record of the specified container to the hot store.
+	 * @return false if the record has to be written to the database
+	 */
+	private boolean appendToHotStore(LogRecordContainer container, ValueType valueType, long timestamp) {
+		
+		Record record = container.getRecord();
+		if(record==null || record.getValue()==null || record.getTimestamp()==null) return true;
+		
+		Flag flag = record.getFlag()!=null ? record.getFlag() : Flag.VALID;
+		long recordTimestamp = useRecordTimestamps ? record.getTimestamp() : timestamp;
+		
+		return hotStore.append(container.getChannelId(), valueType, recordTimestamp, record.getValue(), flag);
+	}
+	
+	private void updateLatestRecords(List<LogRecordContainer> containers, long timestamp) {
+		
+		for (LogRecordContainer logRecordContainer : containers) {
+			
+			if(logRecordContainer==null || !channelsToLog.containsKey(logRecordContainer.getChannelId())) continue;
+			
+			Record record = logRecordContainer.getRecord();
+			if(record==null || record.getValue()==null || record.getTimestamp()==null) continue;
+			
+			Flag flag = record.getFlag()!=null ? record.getFlag() : Flag.VALID;
+			long recordTimestamp = useRecordTimestamps ? record.getTimestamp() : timestamp;
+			putLatestRecord(logRecordContainer.getChannelId(), new Record(record.getValue(), recordTimestamp, flag));
+		}
+	}
+	
+	private void putLatestRecord(String channelId, Record record) {
+		
+		// compare and set, so a newer record stored concurrently won't be replaced by an older one
+		while (true) {
+			Record current = latestRecords.putIfAbsent(channelId, record);
+			if(current==null || current.getTimestamp()>record.getTimestamp()) return;
+			if(latestRecords.replace(channelId, current, record)) return;
+		}
+	}
+	
+	/**
+	 * Waits until the database startup has been finished.
+	 * @throws IOException if the database isn't ready within the startup timeout or the initialization failed
+	 */
+	private void awaitStartup() throws IOException {
+		
+		try {
+			if(!startupLatch.await(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Database startup hasn't been finished yet, cannot retrieve data");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for database startup", e);
+		}
+		
+		if(!initSuccessful) throw new IOException("Database initialization wasn't successful, cannot retrieve data");
+	}
+	
+	private static class PendingLog {
+		
+		private final List<LogRecordContainer> containers;
+		private final long timestamp;
+		
+		public PendingLog(List<LogRecordContainer> containers, long timestamp) {
+			this.containers = containers;
+			this.timestamp = timestamp;
+		}
+	}
+	
 }
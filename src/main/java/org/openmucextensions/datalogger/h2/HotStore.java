@@ -0,0 +1,381 @@
+package org.openmucextensions.datalogger.h2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmuc.framework.data.BooleanValue;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.IntValue;
+import org.openmuc.framework.data.LongValue;
+import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.Value;
+import org.openmuc.framework.data.ValueType;
+
+/**
+ * In-memory store for recent records of numeric channels. The records of each channel are stored in
+ * timestamp order in off-heap blocks, each record is packed into 17 bytes (timestamp, value bits and
+ * flag code). Records will be removed from the beginning in whole, so aged records can be moved to the
+ * database in large sequential batches. The first block of a channel starts small and grows with the
+ * records, so channels with few records don't occupy a whole block.
+ */
+public class HotStore {
+
+	private static final int RECORD_SIZE = 17;
+	private static final int BLOCK_CAPACITY = 4096;
+	// capacity of the first block of a channel, it will be doubled up to the block capacity when it's full
+	private static final int FIRST_BLOCK_CAPACITY = 64;
+	private static final int MAX_FREE_BLOCKS = 64;
+	
+	private final Map<String, Series> series = new HashMap<>();
+	private final Deque<ByteBuffer> freeBlocks = new ArrayDeque<>();
+	
+	// records before this timestamp have been migrated already and will not be accepted any longer
+	private long migrationThreshold = Long.MIN_VALUE;
+	
+	/**
+	 * Checks if records of the specified type can be stored in the hot store.
+	 * @param valueType the value type
+	 * @return true for numeric and boolean types
+	 */
+	public static boolean isSupported(ValueType valueType) {
+		return valueType!=ValueType.STRING && valueType!=ValueType.BYTE_ARRAY;
+	}
+	
+	/**
+	 * Appends a record to the specified channel. Records must be appended in timestamp order, a record with
+	 * the same timestamp as the last record replaces the last record.
+	 * @param channelId the channel id
+	 * @param valueType the value type of the channel
+	 * @param timestamp the timestamp to store
+	 * @param value the value
+	 * @param flag the flag
+	 * @return false if the record is older than the last record of the channel or has a timestamp in an
+	 * already migrated time span and hasn't been stored
+	 */
+	public synchronized boolean append(String channelId, ValueType valueType, long timestamp, Value value, Flag flag) {
+		
+		if(timestamp<migrationThreshold) return false;
+		
+		Series channelSeries = series.get(channelId);
+		if(channelSeries==null || channelSeries.valueType!=valueType) {
+			channelSeries = new Series(valueType);
+			series.put(channelId, channelSeries);
+		}
+		
+		if(channelSeries.count>0) {
+			long lastTimestamp = channelSeries.getTimestamp(channelSeries.count-1);
+			if(timestamp<lastTimestamp) return false;
+			if(timestamp==lastTimestamp) {
+				channelSeries.set(channelSeries.count-1, timestamp, toBits(valueType, value), flag);
+				return true;
+			}
+		}
+		
+		channelSeries.append(timestamp, toBits(valueType, value), flag);
+		return true;
+	}
+	
+	/**
+	 * Gets the records of the specified channel in the specified time span in columnar form.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @return the records in timestamp order, the value type is <code>null</code> if the channel has no records
+	 */
+	public synchronized RecordColumns getRecordColumns(String channelId, long startTime, long endTime) {
+		
+		Series channelSeries = series.get(channelId);
+		if(channelSeries==null) return new RecordColumns(null, 0);
+		
+		int start = channelSeries.indexOf(startTime);
+		int end = start;
+		while (end<channelSeries.count && channelSeries.getTimestamp(end)<=endTime) end++;
+		
+		RecordColumns columns = new RecordColumns(channelSeries.valueType, end-start);
+		for (int i = start; i < end; i++) {
+			channelSeries.addTo(columns, i);
+		}
+		
+		return columns;
+	}
+	
+	/**
+	 * Gets the latest record of the specified channel at or before the specified time.
+	 * @param channelId the channel id
+	 * @param timestamp point in time
+	 * @return the record or <code>null</code> if the hot store doesn't contain such a record
+	 */
+	public synchronized Record getRecordAt(String channelId, long timestamp) {
+		
+		Series channelSeries = series.get(channelId);
+		if(channelSeries==null) return null;
+		
+		// index of the first record after the specified time
+		int index = channelSeries.indexOf(timestamp);
+		if(index<channelSeries.count && channelSeries.getTimestamp(index)==timestamp) index++;
+		
+		return index>0 ? channelSeries.getRecord(index-1) : null;
+	}
+	
+	/**
+	 * Gets the ids of all channels with records in the hot store.
+	 * @return the channel ids
+	 */
+	public synchronized List<String> getChannelIds() {
+		return new ArrayList<>(series.keySet());
+	}
+	
+	/**
+	 * Gets records of the specified channel that are older than the specified timestamp in columnar form. The
+	 * values will be read directly from the off-heap blocks. Records before the timestamp will not be accepted
+	 * any longer, but they will not be removed, see {@link #removeBefore(String, long)}.
+	 * @param channelId the channel id
+	 * @param startTime timestamp of the first record to return, for getting the records in chunks
+	 * @param timestamp the timestamp
+	 * @param downsampleInterval if greater than zero, only the last record of each interval will be returned
+	 * @param maxCount maximum number of records to return
+	 * @return the records in timestamp order
+	 */
+	public synchronized RecordColumns getRecordsBefore(String channelId, long startTime, long timestamp, long downsampleInterval, int maxCount) {
+		
+		migrationThreshold = Math.max(migrationThreshold, timestamp);
+		
+		Series channelSeries = series.get(channelId);
+		if(channelSeries==null) return new RecordColumns(null, 0);
+		
+		int start = channelSeries.indexOf(startTime);
+		int end = channelSeries.indexOf(timestamp);
+		RecordColumns columns = new RecordColumns(channelSeries.valueType, Math.max(Math.min(end-start, maxCount), 0));
+		
+		for (int i = start; i < end && columns.getSize()<maxCount; i++) {
+			if(downsampleInterval>0 && i+1<end
+					&& channelSeries.getTimestamp(i)/downsampleInterval==channelSeries.getTimestamp(i+1)/downsampleInterval) {
+				continue;
+			}
+			channelSeries.addTo(columns, i);
+		}
+		
+		return columns;
+	}
+	
+	/**
+	 * Removes all records that are older than the specified timestamp.
+	 * @param timestamp the timestamp
+	 * @return number of removed records
+	 */
+	public synchronized int removeBefore(long timestamp) {
+		
+		int removed = 0;
+		
+		for (String channelId : series.keySet()) {
+			removed += removeBefore(channelId, timestamp);
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Removes all records of the specified channel that are older than the specified timestamp.
+	 * @param channelId the channel id
+	 * @param timestamp the timestamp
+	 * @return number of removed records
+	 */
+	public synchronized int removeBefore(String channelId, long timestamp) {
+		
+		migrationThreshold = Math.max(migrationThreshold, timestamp);
+		
+		Series channelSeries = series.get(channelId);
+		if(channelSeries==null) return 0;
+		
+		int count = channelSeries.indexOf(timestamp);
+		channelSeries.removeFirst(count);
+		
+		return count;
+	}
+	
+	/**
+	 * Removes all records and releases the off-heap blocks.
+	 */
+	public synchronized void clear() {
+		series.clear();
+		freeBlocks.clear();
+	}
+	
+	private static long toBits(ValueType valueType, Value value) {
+		
+		switch (valueType) {
+		case LONG:
+			return value.asLong();
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			return value.asInt();
+		case BOOLEAN:
+			return value.asBoolean() ? 1 : 0;
+		default:
+			return Double.doubleToRawLongBits(value.asDouble());
+		}
+	}
+	
+	private static Value toValue(ValueType valueType, long bits) {
+		
+		switch (valueType) {
+		case LONG:
+			return new LongValue(bits);
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			return new IntValue((int) bits);
+		case BOOLEAN:
+			return new BooleanValue(bits!=0);
+		default:
+			return new DoubleValue(Double.longBitsToDouble(bits));
+		}
+	}
+	
+	/**
+	 * Records of one channel. The record with index i is stored at position start+i in the blocks.
+	 */
+	private class Series {
+		
+		private final ValueType valueType;
+		private final List<ByteBuffer> blocks = new ArrayList<>();
+		private int start = 0;
+		private int count = 0;
+		
+		public Series(ValueType valueType) {
+			this.valueType = valueType;
+		}
+		
+		public void append(long timestamp, long bits, Flag flag) {
+			
+			int position = start + count;
+			if(blocks.isEmpty()) {
+				ByteBuffer block = freeBlocks.pollFirst();
+				if(block==null) block = ByteBuffer.allocateDirect(FIRST_BLOCK_CAPACITY*RECORD_SIZE);
+				blocks.add(block);
+			} else if(position/BLOCK_CAPACITY>=blocks.size()) {
+				ByteBuffer block = freeBlocks.pollFirst();
+				if(block==null) block = ByteBuffer.allocateDirect(BLOCK_CAPACITY*RECORD_SIZE);
+				blocks.add(block);
+			} else if(blocks.size()==1 && position>=blocks.get(0).capacity()/RECORD_SIZE) {
+				// only the first block can be smaller than the block capacity
+				growFirstBlock();
+			}
+			
+			count++;
+			set(count-1, timestamp, bits, flag);
+		}
+		
+		private void growFirstBlock() {
+			
+			ByteBuffer block = blocks.get(0);
+			int capacity = Math.min(block.capacity()/RECORD_SIZE*2, BLOCK_CAPACITY);
+			
+			// records are accessed by absolute offsets, so the whole block will be copied independent of its position
+			ByteBuffer source = block.duplicate();
+			source.clear();
+			
+			ByteBuffer grownBlock = ByteBuffer.allocateDirect(capacity*RECORD_SIZE);
+			grownBlock.put(source);
+			blocks.set(0, grownBlock);
+		}
+		
+		public void set(int index, long timestamp, long bits, Flag flag) {
+			
+			int position = start + index;
+			ByteBuffer block = blocks.get(position/BLOCK_CAPACITY);
+			int offset = (position%BLOCK_CAPACITY)*RECORD_SIZE;
+			
+			block.putLong(offset, timestamp);
+			block.putLong(offset+8, bits);
+			block.put(offset+16, (byte) flag.getCode());
+		}
+		
+		public long getTimestamp(int index) {
+			int position = start + index;
+			return blocks.get(position/BLOCK_CAPACITY).getLong((position%BLOCK_CAPACITY)*RECORD_SIZE);
+		}
+		
+		public Record getRecord(int index) {
+			
+			int position = start + index;
+			ByteBuffer block = blocks.get(position/BLOCK_CAPACITY);
+			int offset = (position%BLOCK_CAPACITY)*RECORD_SIZE;
+			
+			return new Record(toValue(valueType, block.getLong(offset+8)), block.getLong(offset), Flag.newFlag(block.get(offset+16)));
+		}
+		
+		public void addTo(RecordColumns columns, int index) {
+			
+			int position = start + index;
+			ByteBuffer block = blocks.get(position/BLOCK_CAPACITY);
+			int offset = (position%BLOCK_CAPACITY)*RECORD_SIZE;
+			
+			int columnIndex = columns.add(block.getLong(offset), block.get(offset+16));
+			long bits = block.getLong(offset+8);
+			
+			switch (valueType) {
+			case LONG:
+				columns.setLong(columnIndex, bits);
+				break;
+			case INTEGER:
+			case SHORT:
+			case BYTE:
+				columns.setInt(columnIndex, (int) bits);
+				break;
+			case BOOLEAN:
+				columns.setBoolean(columnIndex, bits!=0);
+				break;
+			default:
+				columns.setDouble(columnIndex, Double.longBitsToDouble(bits));
+				break;
+			}
+		}
+		
+		/**
+		 * Returns the index of the first record with a timestamp at or after the specified timestamp.
+		 */
+		public int indexOf(long timestamp) {
+			
+			int low = 0;
+			int high = count;
+			
+			while (low<high) {
+				int middle = (low+high) >>> 1;
+				if(getTimestamp(middle)<timestamp) low = middle + 1;
+				else high = middle;
+			}
+			
+			return low;
+		}
+		
+		public void removeFirst(int removeCount) {
+			
+			start += removeCount;
+			count -= removeCount;
+			
+			while (start>=BLOCK_CAPACITY) {
+				ByteBuffer block = blocks.remove(0);
+				if(freeBlocks.size()<MAX_FREE_BLOCKS) freeBlocks.addLast(block);
+				start -= BLOCK_CAPACITY;
+			}
+			
+			if(count==0 && !blocks.isEmpty()) {
+				// keep the first block for the next records
+				while (blocks.size()>1) {
+					ByteBuffer block = blocks.remove(blocks.size()-1);
+					if(freeBlocks.size()<MAX_FREE_BLOCKS) freeBlocks.addLast(block);
+				}
+				start = 0;
+			}
+		}
+	}
+
+}
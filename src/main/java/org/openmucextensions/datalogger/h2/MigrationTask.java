@@ -0,0 +1,98 @@
+package org.openmucextensions.datalogger.h2;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This task moves aged records from the hot store to the database. If the database should not
+ * be used for these records (in-memory only mode), aged records will be discarded.
+ */
+public class MigrationTask extends TimerTask {
+
+	private static Logger logger = LoggerFactory.getLogger(H2Logger.class);
+	
+	// maximum number of records that will be written at once, the database is locked while writing
+	private static final int CHUNK_SIZE = 10000;
+	
+	private final HotStore hotStore;
+	private final DatabaseWrapper database;
+	private final long hotInterval;
+	private final long downsampleInterval;
+	
+	/**
+	 * Creates a new migration task.
+	 * @param hotStore the hot store
+	 * @param database the database or <code>null</code> if aged records should be discarded
+	 * @param hotInterval records older than this interval in milliseconds will be moved
+	 * @param downsampleInterval if greater than zero, only the last record of each interval will be moved
+	 */
+	public MigrationTask(final HotStore hotStore, final DatabaseWrapper database, long hotInterval, long downsampleInterval) {
+		super();
+		this.hotStore = hotStore;
+		this.database = database;
+		this.hotInterval = hotInterval;
+		this.downsampleInterval = downsampleInterval;
+	}
+	
+	@Override
+	public void run() {
+		
+		long threshold = System.currentTimeMillis() - hotInterval;
+		// only complete downsampling intervals will be moved
+		if(downsampleInterval>0) threshold = threshold / downsampleInterval * downsampleInterval;
+		
+		migrate(threshold);
+	}
+	
+	/**
+	 * Moves all records before the specified timestamp from the hot store to the database. The records will be
+	 * moved channel by channel in chunks, so the database is locked only for one chunk at a time.
+	 * @param threshold the timestamp
+	 */
+	public void migrate(long threshold) {
+		
+		int movedCount = 0;
+		int removedCount = 0;
+		
+		for (String channelId : hotStore.getChannelIds()) {
+			
+			if(database!=null) {
+				try {
+					movedCount += moveRecords(channelId, threshold);
+				} catch (SQLException e) {
+					// records will be kept in the hot store and moved with the next run
+					logger.error("Error while moving records to database: {}", e.getMessage());
+					return;
+				}
+			}
+			
+			removedCount += hotStore.removeBefore(channelId, threshold);
+		}
+		
+		if(database!=null) logger.debug("Moved {} record(s) before {} to database", movedCount, new Timestamp(threshold).toString());
+		logger.debug("Removed {} record(s) before {} from hot store", removedCount, new Timestamp(threshold).toString());
+	}
+	
+	private int moveRecords(String channelId, long threshold) throws SQLException {
+		
+		int recordCount = 0;
+		long startTime = Long.MIN_VALUE;
+		RecordColumns columns;
+		
+		do {
+			columns = hotStore.getRecordsBefore(channelId, startTime, threshold, downsampleInterval, CHUNK_SIZE);
+			if(columns.getSize()==0) break;
+			
+			database.logRecordColumns(channelId, columns);
+			recordCount += columns.getSize();
+			startTime = columns.getTimestamps()[columns.getSize()-1] + 1;
+		} while (columns.getSize()==CHUNK_SIZE);
+		
+		return recordCount;
+	}
+
+}
@@ -0,0 +1,196 @@
+package org.openmucextensions.datalogger.h2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size bounded LRU cache for query results of historical time spans. The records are held in
+ * columnar form, see {@link RecordColumns}.
+ */
+public class RecordCache {
+	
+	private final long maxSize;
+	private long size = 0;
+	
+	private final LinkedHashMap<Key, RecordColumns> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// keys of the cached query results of each channel, so invalidation doesn't need to check all entries
+	private final Map<String, Set<Key>> keysPerChannel = new HashMap<>();
+	
+	/**
+	 * Creates a new cache.
+	 * @param maxSize maximum approximate heap usage of the cached records in bytes
+	 */
+	public RecordCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Gets the cached records for the specified query. The returned columns are shared with the cache
+	 * and must not be modified.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @return the records or <code>null</code> if the query result isn't cached
+	 */
+	public synchronized RecordColumns get(String channelId, long startTime, long endTime) {
+		return entries.get(new Key(channelId, startTime, endTime));
+	}
+	
+	/**
+	 * Adds the result of the specified query to the cache. The columns will be trimmed to their size. Least
+	 * recently used entries will be removed if the maximum size would be exceeded.
+	 * @param channelId the channel id
+	 * @param startTime start time
+	 * @param endTime end time
+	 * @param columns the query result, must not be modified afterwards if it has been cached
+	 * @return true if the columns have been cached, false if the cache is disabled or the columns are too large
+	 */
+	public synchronized boolean put(String channelId, long startTime, long endTime, RecordColumns columns) {
+		
+		if(maxSize<=0) return false;
+		
+		columns.trim();
+		long entrySize = columns.getHeapSize();
+		if(entrySize>maxSize) return false;
+		
+		Key key = new Key(channelId, startTime, endTime);
+		remove(key);
+		
+		Iterator<Map.Entry<Key, RecordColumns>> iterator = entries.entrySet().iterator();
+		while (size+entrySize>maxSize && iterator.hasNext()) {
+			Map.Entry<Key, RecordColumns> eldest = iterator.next();
+			iterator.remove();
+			removed(eldest.getKey(), eldest.getValue());
+		}
+		
+		entries.put(key, columns);
+		size += entrySize;
+		
+		Set<Key> channelKeys = keysPerChannel.get(channelId);
+		if(channelKeys==null) {
+			channelKeys = new HashSet<>();
+			keysPerChannel.put(channelId, channelKeys);
+		}
+		channelKeys.add(key);
+		
+		return true;
+	}
+	
+	/**
+	 * Removes all cached query results of the specified channel whose time span contains the specified timestamp.
+	 * @param channelId the channel id
+	 * @param timestamp timestamp of a changed record
+	 */
+	public synchronized void invalidate(String channelId, long timestamp) {
+		invalidate(channelId, timestamp, timestamp);
+	}
+	
+	/**
+	 * Removes all cached query results of the specified channel whose time span overlaps the specified time span.
+	 * @param channelId the channel id
+	 * @param startTime timestamp of the first changed record
+	 * @param endTime timestamp of the last changed record
+	 */
+	public synchronized void invalidate(String channelId, long startTime, long endTime) {
+		
+		Set<Key> channelKeys = keysPerChannel.get(channelId);
+		if(channelKeys==null) return;
+		
+		List<Key> invalidKeys = new ArrayList<>();
+		for (Key key : channelKeys) {
+			if(key.startTime<=endTime && key.endTime>=startTime) invalidKeys.add(key);
+		}
+		
+		for (Key key : invalidKeys) {
+			remove(key);
+		}
+	}
+	
+	/**
+	 * Removes all cached query results of the specified channel.
+	 * @param channelId the channel id
+	 */
+	public synchronized void invalidate(String channelId) {
+		
+		Set<Key> channelKeys = keysPerChannel.get(channelId);
+		if(channelKeys==null) return;
+		
+		for (Key key : new ArrayList<>(channelKeys)) {
+			remove(key);
+		}
+	}
+	
+	/**
+	 * Removes all cached query results whose time span starts before the specified timestamp.
+	 * @param timestamp the timestamp
+	 */
+	public synchronized void invalidateBefore(long timestamp) {
+		
+		Iterator<Map.Entry<Key, RecordColumns>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, RecordColumns> entry = iterator.next();
+			if(entry.getKey().startTime<timestamp) {
+				iterator.remove();
+				removed(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the approximate heap usage of the cached records in bytes.
+	 * @return cache size in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	private void remove(Key key) {
+		RecordColumns entry = entries.remove(key);
+		if(entry!=null) removed(key, entry);
+	}
+	
+	private void removed(Key key, RecordColumns entry) {
+		
+		size -= entry.getHeapSize();
+		
+		Set<Key> channelKeys = keysPerChannel.get(key.channelId);
+		channelKeys.remove(key);
+		if(channelKeys.isEmpty()) keysPerChannel.remove(key.channelId);
+	}
+	
+	private static class Key {
+		
+		private final String channelId;
+		private final long startTime;
+		private final long endTime;
+		
+		public Key(String channelId, long startTime, long endTime) {
+			this.channelId = channelId;
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+		
+		@Override
+		public int hashCode() {
+			int result = channelId.hashCode();
+			result = 31 * result + (int) (startTime ^ (startTime >>> 32));
+			result = 31 * result + (int) (endTime ^ (endTime >>> 32));
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(this==obj) return true;
+			if(!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return channelId.equals(other.channelId) && startTime==other.startTime && endTime==other.endTime;
+		}
+	}
+
+}
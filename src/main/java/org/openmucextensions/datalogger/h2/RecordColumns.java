@@ -0,0 +1,396 @@
+package org.openmucextensions.datalogger.h2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openmuc.framework.data.BooleanValue;
+import org.openmuc.framework.data.ByteArrayValue;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.IntValue;
+import org.openmuc.framework.data.LongValue;
+import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.StringValue;
+import org.openmuc.framework.data.Value;
+import org.openmuc.framework.data.ValueType;
+
+/**
+ * Records of one channel in columnar form. Timestamps, flag codes and values are stored in parallel
+ * arrays, only the value array that matches the value type of the channel is used:
+ *
+ * <table summary="Value arrays">
+ * <tr><th>Value type</th><th>Value array</th></tr>
+ * <tr><td>DOUBLE, FLOAT</td><td>{@link #getDoubleValues()}</td></tr>
+ * <tr><td>LONG</td><td>{@link #getLongValues()}</td></tr>
+ * <tr><td>INTEGER, SHORT, BYTE</td><td>{@link #getIntValues()}</td></tr>
+ * <tr><td>BOOLEAN</td><td>{@link #getBooleanValues()}</td></tr>
+ * <tr><td>STRING</td><td>{@link #getStringValues()}</td></tr>
+ * <tr><td>BYTE_ARRAY</td><td>{@link #getByteArrayValues()}</td></tr>
+ * </table>
+ *
+ * The arrays may be longer than the number of records, only the first {@link #getSize()} elements are valid.
+ */
+public class RecordColumns {
+
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private final ValueType valueType;
+	private int size = 0;
+	private long[] timestamps;
+	private byte[] flags;
+	private double[] doubleValues;
+	private long[] longValues;
+	private int[] intValues;
+	private boolean[] booleanValues;
+	private String[] stringValues;
+	private byte[][] byteArrayValues;
+	
+	/**
+	 * Creates empty columns for the specified value type.
+	 * @param valueType the value type of the channel or <code>null</code> if the channel is unknown
+	 */
+	public RecordColumns(ValueType valueType) {
+		this(valueType, INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * Creates empty columns for the specified value type.
+	 * @param valueType the value type of the channel or <code>null</code> if the channel is unknown
+	 * @param capacity initial number of records the arrays can hold
+	 */
+	public RecordColumns(ValueType valueType, int capacity) {
+		
+		this.valueType = valueType;
+		timestamps = new long[capacity];
+		flags = new byte[capacity];
+		
+		if(valueType==null) return;
+		
+		switch (valueType) {
+		case LONG:
+			longValues = new long[capacity];
+			break;
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			intValues = new int[capacity];
+			break;
+		case BOOLEAN:
+			booleanValues = new boolean[capacity];
+			break;
+		case STRING:
+			stringValues = new String[capacity];
+			break;
+		case BYTE_ARRAY:
+			byteArrayValues = new byte[capacity][];
+			break;
+		default:
+			doubleValues = new double[capacity];
+			break;
+		}
+	}
+	
+	/**
+	 * Creates columns from the specified records.
+	 * @param valueType the value type of the channel
+	 * @param records the records
+	 * @return the columns
+	 */
+	public static RecordColumns fromRecords(ValueType valueType, List<Record> records) {
+		
+		RecordColumns columns = new RecordColumns(valueType, records.size());
+		
+		for (Record record : records) {
+			int index = columns.add(record.getTimestamp(), record.getFlag()!=null ? record.getFlag() : Flag.VALID);
+			Value value = record.getValue();
+			
+			switch (valueType) {
+			case LONG:
+				columns.longValues[index] = value.asLong();
+				break;
+			case INTEGER:
+			case SHORT:
+			case BYTE:
+				columns.intValues[index] = value.asInt();
+				break;
+			case BOOLEAN:
+				columns.booleanValues[index] = value.asBoolean();
+				break;
+			case STRING:
+				columns.stringValues[index] = value.asString();
+				break;
+			case BYTE_ARRAY:
+				columns.byteArrayValues[index] = value.asByteArray();
+				break;
+			default:
+				columns.doubleValues[index] = value.asDouble();
+				break;
+			}
+		}
+		
+		return columns;
+	}
+	
+	public ValueType getValueType() {
+		return valueType;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+	
+	/**
+	 * Returns the flag codes of the records, see {@link Flag#getCode()}.
+	 * @return flag codes
+	 */
+	public byte[] getFlags() {
+		return flags;
+	}
+	
+	public double[] getDoubleValues() {
+		return doubleValues;
+	}
+	
+	public long[] getLongValues() {
+		return longValues;
+	}
+	
+	public int[] getIntValues() {
+		return intValues;
+	}
+	
+	public boolean[] getBooleanValues() {
+		return booleanValues;
+	}
+	
+	public String[] getStringValues() {
+		return stringValues;
+	}
+	
+	public byte[][] getByteArrayValues() {
+		return byteArrayValues;
+	}
+	
+	/**
+	 * Converts the columns to a list of records.
+	 * @return list of records
+	 */
+	public List<Record> toRecords() {
+		
+		List<Record> records = new ArrayList<>(size);
+		
+		for (int i = 0; i < size; i++) {
+			records.add(getRecord(i));
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Returns the record at the specified index.
+	 * @param index the index
+	 * @return the record
+	 */
+	public Record getRecord(int index) {
+		
+		Value value;
+		
+		switch (valueType) {
+		case LONG:
+			value = new LongValue(longValues[index]);
+			break;
+		case INTEGER:
+		case SHORT:
+		case BYTE:
+			value = new IntValue(intValues[index]);
+			break;
+		case BOOLEAN:
+			value = new BooleanValue(booleanValues[index]);
+			break;
+		case STRING:
+			value = new StringValue(stringValues[index]);
+			break;
+		case BYTE_ARRAY:
+			value = new ByteArrayValue(byteArrayValues[index].clone());
+			break;
+		default:
+			value = new DoubleValue(doubleValues[index]);
+			break;
+		}
+		
+		return new Record(value, timestamps[index], Flag.newFlag(flags[index]));
+	}
+	
+	/**
+	 * Merges two columns of the same channel by timestamp. Both columns must be sorted by timestamp. If both
+	 * contain a record with the same timestamp, the record of the preferred columns will be used.
+	 * @param columns the columns
+	 * @param preferredColumns the preferred columns
+	 * @return merged columns
+	 */
+	public static RecordColumns merge(RecordColumns columns, RecordColumns preferredColumns) {
+		
+		if(preferredColumns.size==0) return columns;
+		if(columns.size==0) return preferredColumns;
+		
+		RecordColumns merged = new RecordColumns(preferredColumns.valueType, columns.size + preferredColumns.size);
+		int index = 0;
+		int preferredIndex = 0;
+		
+		while (index<columns.size || preferredIndex<preferredColumns.size) {
+			if(preferredIndex>=preferredColumns.size) {
+				merged.addFrom(columns, index++);
+			} else if(index>=columns.size) {
+				merged.addFrom(preferredColumns, preferredIndex++);
+			} else if(columns.timestamps[index]<preferredColumns.timestamps[preferredIndex]) {
+				merged.addFrom(columns, index++);
+			} else {
+				if(columns.timestamps[index]==preferredColumns.timestamps[preferredIndex]) index++;
+				merged.addFrom(preferredColumns, preferredIndex++);
+			}
+		}
+		
+		return merged;
+	}
+	
+	/**
+	 * Appends a record and returns its index. The value has to be set in the value array by the caller.
+	 */
+	int add(long timestamp, Flag flag) {
+		return add(timestamp, (byte) flag.getCode());
+	}
+	
+	int add(long timestamp, byte flag) {
+		
+		if(size==timestamps.length) grow();
+		
+		timestamps[size] = timestamp;
+		flags[size] = flag;
+		return size++;
+	}
+	
+	void setDouble(int index, double value) {
+		doubleValues[index] = value;
+	}
+	
+	void setLong(int index, long value) {
+		longValues[index] = value;
+	}
+	
+	void setInt(int index, int value) {
+		intValues[index] = value;
+	}
+	
+	void setBoolean(int index, boolean value) {
+		booleanValues[index] = value;
+	}
+	
+	void setString(int index, String value) {
+		stringValues[index] = value;
+	}
+	
+	void setByteArray(int index, byte[] value) {
+		byteArrayValues[index] = value;
+	}
+	
+	/**
+	 * Returns a copy with arrays of the exact number of records.
+	 */
+	RecordColumns copy() {
+		
+		RecordColumns columns = new RecordColumns(valueType, size);
+		for (int i = 0; i < size; i++) {
+			columns.addFrom(this, i);
+			if(byteArrayValues!=null) columns.byteArrayValues[i] = byteArrayValues[i].clone();
+		}
+		
+		return columns;
+	}
+	
+	/**
+	 * Removes all records, the arrays will be reused.
+	 */
+	void clear() {
+		
+		// release references to objects of the previous records
+		if(stringValues!=null) Arrays.fill(stringValues, 0, size, null);
+		if(byteArrayValues!=null) Arrays.fill(byteArrayValues, 0, size, null);
+		size = 0;
+	}
+	
+	/**
+	 * Shrinks the arrays to the number of records.
+	 */
+	void trim() {
+		
+		if(size==timestamps.length) return;
+		resize(size);
+	}
+	
+	/**
+	 * Returns the approximate heap usage in bytes.
+	 */
+	long getHeapSize() {
+		
+		long capacity = timestamps.length;
+		long heapSize = 128 + 9 * capacity;
+		
+		if(doubleValues!=null || longValues!=null) heapSize += 8 * capacity;
+		if(intValues!=null) heapSize += 4 * capacity;
+		if(booleanValues!=null) heapSize += capacity;
+		
+		if(stringValues!=null) {
+			heapSize += 8 * capacity;
+			for (int i = 0; i < size; i++) {
+				if(stringValues[i]!=null) heapSize += 40 + 2 * stringValues[i].length();
+			}
+		}
+		
+		if(byteArrayValues!=null) {
+			heapSize += 8 * capacity;
+			for (int i = 0; i < size; i++) {
+				if(byteArrayValues[i]!=null) heapSize += 16 + byteArrayValues[i].length;
+			}
+		}
+		
+		return heapSize;
+	}
+	
+	/**
+	 * Appends the record at the specified index of the source columns.
+	 */
+	void addFrom(RecordColumns source, int sourceIndex) {
+		
+		int index = add(source.timestamps[sourceIndex], source.flags[sourceIndex]);
+		
+		if(doubleValues!=null) doubleValues[index] = source.doubleValues[sourceIndex];
+		if(longValues!=null) longValues[index] = source.longValues[sourceIndex];
+		if(intValues!=null) intValues[index] = source.intValues[sourceIndex];
+		if(booleanValues!=null) booleanValues[index] = source.booleanValues[sourceIndex];
+		if(stringValues!=null) stringValues[index] = source.stringValues[sourceIndex];
+		if(byteArrayValues!=null) byteArrayValues[index] = source.byteArrayValues[sourceIndex];
+	}
+	
+	private void grow() {
+		resize(Math.max(INITIAL_CAPACITY, timestamps.length * 2));
+	}
+	
+	private void resize(int capacity) {
+		
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		
+		if(doubleValues!=null) doubleValues = Arrays.copyOf(doubleValues, capacity);
+		if(longValues!=null) longValues = Arrays.copyOf(longValues, capacity);
+		if(intValues!=null) intValues = Arrays.copyOf(intValues, capacity);
+		if(booleanValues!=null) booleanValues = Arrays.copyOf(booleanValues, capacity);
+		if(stringValues!=null) stringValues = Arrays.copyOf(stringValues, capacity);
+		if(byteArrayValues!=null) byteArrayValues = Arrays.copyOf(byteArrayValues, capacity);
+	}
+
+}
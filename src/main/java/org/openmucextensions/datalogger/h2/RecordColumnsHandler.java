@@ -0,0 +1,15 @@
+package org.openmucextensions.datalogger.h2;
+
+/**
+ * Receives the chunks of a streamed columnar query.
+ */
+public interface RecordColumnsHandler {
+	
+	/**
+	 * Handles the next chunk of records. The columns will be reused for the next chunk, so the
+	 * handler must not keep a reference to the columns or their arrays.
+	 * @param columns the records of the chunk
+	 */
+	void handle(RecordColumns columns);
+	
+}
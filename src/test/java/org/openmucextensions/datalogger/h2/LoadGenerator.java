@@ -0,0 +1,403 @@
+package org.openmucextensions.datalogger.h2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmuc.framework.core.datamanager.LogRecordContainerImpl;
+import org.openmuc.framework.data.BooleanValue;
+import org.openmuc.framework.data.ByteArrayValue;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.FloatValue;
+import org.openmuc.framework.data.IntValue;
+import org.openmuc.framework.data.LongValue;
+import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.StringValue;
+import org.openmuc.framework.data.Value;
+import org.openmuc.framework.data.ValueType;
+import org.openmuc.framework.datalogger.spi.LogChannel;
+import org.openmuc.framework.datalogger.spi.LogRecordContainer;
+
+/**
+ * Load generator and soak test for the H2 logger. The generator simulates a plant with many channels of
+ * mixed value types and logging intervals, while concurrent readers query historical data and the periodical
+ * cleanup is running. Throughput, latency percentiles, heap and GC usage and the database file size will be
+ * reported periodically.
+ *
+ * Half of the queries read the last hour, the other half repeat reports of one of the last three complete days
+ * (hours if less than two days have been simulated) that ended at least an hour ago. Reports need a simulated
+ * time span of some hours, so the speedup should be set accordingly, e.g. 60 for one hour per minute.
+ *
+ * The workload can be configured with the following system properties:
+ * <ul>
+ * <li><code>loadgen.channels</code> number of channels (default 1000)</li>
+ * <li><code>loadgen.types</code> comma separated value types of the channels, assigned round robin (default all types)</li>
+ * <li><code>loadgen.intervals</code> comma separated logging intervals in ms, assigned round robin (default 1000,5000,15000,60000)</li>
+ * <li><code>loadgen.duration</code> run time in seconds (default 60)</li>
+ * <li><code>loadgen.speedup</code> simulated time per wall clock time, the simulated time ends at the current time (default 1)</li>
+ * <li><code>loadgen.readers</code> number of concurrent reader threads (default 2)</li>
+ * <li><code>loadgen.readerPause</code> pause between two queries of a reader in ms (default 100)</li>
+ * <li><code>loadgen.reportInterval</code> report interval in seconds (default 10)</li>
+ * </ul>
+ * All properties of the H2 logger (e.g. <code>org.openmucextensions.datalogger.h2.storageInterval</code>) can be set as well.
+ */
+public class LoadGenerator {
+
+	private static final ValueType[] DEFAULT_TYPES = { ValueType.DOUBLE, ValueType.FLOAT, ValueType.LONG, ValueType.INTEGER,
+			ValueType.SHORT, ValueType.BYTE, ValueType.BOOLEAN, ValueType.STRING, ValueType.BYTE_ARRAY };
+	private static final String[] STATES = { "RUNNING", "STOPPED", "FAULT", "MAINTENANCE" };
+	
+	// logger timing resolution in ms
+	private static final long TICK = 100;
+	
+	private static final long HOUR = 1000l*60*60;
+	private static final long DAY = 24*HOUR;
+	// reports query time spans that ended at least this long before the simulated time, so they can be cached
+	private static final long REPORT_AGE = HOUR;
+	
+	private final H2Logger logger = new H2Logger();
+	private final List<GeneratedChannel> channels = new ArrayList<>();
+	private final Random random = new Random(42);
+	
+	private final int readerCount = Integer.getInteger("loadgen.readers", 2);
+	private final long readerPause = Long.getLong("loadgen.readerPause", 100);
+	private final long duration = Long.getLong("loadgen.duration", 60) * 1000;
+	private final long speedup = Long.getLong("loadgen.speedup", 1);
+	private final long reportInterval = Long.getLong("loadgen.reportInterval", 10) * 1000;
+	private final File databaseFile = new File(System.getProperty("org.openmucextensions.datalogger.h2.database", "./h2logger/database") + ".mv.db");
+	
+	private final Histogram logLatency = new Histogram();
+	private final Histogram readLatency = new Histogram();
+	private final AtomicLong recordsWritten = new AtomicLong();
+	private final AtomicLong recordsRead = new AtomicLong();
+	private final AtomicLong readErrors = new AtomicLong();
+	
+	private volatile boolean running = true;
+	private volatile long simulatedTime;
+	private long simulatedStart;
+	
+	public static void main(String[] args) throws Exception {
+		new LoadGenerator().run();
+	}
+	
+	public void run() throws Exception {
+		
+		createChannels();
+		
+		logger.activate(null);
+		logger.setChannelsToLog(new ArrayList<LogChannel>(channels));
+		// wait for the database startup, otherwise records would be buffered and maybe discarded
+		logger.getRecords(channels.get(0).getId(), 0, 0);
+		
+		long wallStart = System.currentTimeMillis();
+		simulatedStart = (wallStart - duration * speedup) / TICK * TICK;
+		simulatedTime = simulatedStart;
+		
+		List<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < readerCount; i++) {
+			Thread reader = new Thread(new Reader(i), "Reader " + i);
+			reader.setDaemon(true);
+			reader.start();
+			readers.add(reader);
+		}
+		
+		System.out.println("channels=" + channels.size() + " readers=" + readerCount + " duration=" + duration / 1000 + "s speedup=" + speedup);
+		System.out.println("time[s]  records/s  log p50/p99/p999[us]  read p50/p99/p999[us]  reads/s  read errors  heap/direct[MB]  gc count/time[ms]  file[MB]");
+		
+		long lastReport = wallStart;
+		long lastRecordsWritten = 0;
+		long lastRecordsRead = 0;
+		
+		while (System.currentTimeMillis()-wallStart < duration) {
+			
+			long wallTime = System.currentTimeMillis();
+			long targetTime = simulatedStart + (wallTime-wallStart) * speedup;
+			
+			while (simulatedTime + TICK <= targetTime) {
+				simulatedTime += TICK;
+				logDueChannels(simulatedTime);
+			}
+			
+			if(wallTime-lastReport >= reportInterval) {
+				report(wallTime-wallStart, wallTime-lastReport, recordsWritten.get()-lastRecordsWritten, recordsRead.get()-lastRecordsRead);
+				lastReport = wallTime;
+				lastRecordsWritten = recordsWritten.get();
+				lastRecordsRead = recordsRead.get();
+			}
+			
+			Thread.sleep(Math.max(1, TICK / speedup));
+		}
+		
+		running = false;
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		
+		long wallTime = System.currentTimeMillis();
+		report(wallTime-wallStart, wallTime-lastReport, recordsWritten.get()-lastRecordsWritten, recordsRead.get()-lastRecordsRead);
+		System.out.println("total: " + recordsWritten.get() + " records written, " + recordsWritten.get() * 1000 / Math.max(1, wallTime-wallStart) + " records/s");
+		
+		logger.deactivate(null);
+	}
+	
+	private void createChannels() {
+		
+		ValueType[] types = DEFAULT_TYPES;
+		String typesString = System.getProperty("loadgen.types");
+		if(typesString!=null) {
+			String[] typeNames = typesString.split(",");
+			types = new ValueType[typeNames.length];
+			for (int i = 0; i < typeNames.length; i++) {
+				types[i] = ValueType.valueOf(typeNames[i].trim());
+			}
+		}
+		
+		String[] intervals = System.getProperty("loadgen.intervals", "1000,5000,15000,60000").split(",");
+		int channelCount = Integer.getInteger("loadgen.channels", 1000);
+		
+		for (int i = 0; i < channelCount; i++) {
+			long interval = Long.parseLong(intervals[i % intervals.length].trim());
+			// spread the channels of one interval over the interval
+			long offset = (i * TICK) % interval;
+			channels.add(new GeneratedChannel("channel" + i, types[i % types.length], interval, offset));
+		}
+	}
+	
+	private void logDueChannels(long timestamp) {
+		
+		List<LogRecordContainer> containers = new ArrayList<>();
+		
+		for (GeneratedChannel channel : channels) {
+			if(timestamp % channel.interval == channel.offset) {
+				containers.add(new LogRecordContainerImpl(channel.getId(), new Record(channel.nextValue(timestamp), timestamp, Flag.VALID)));
+			}
+		}
+		
+		if(containers.isEmpty()) return;
+		
+		long start = System.nanoTime();
+		logger.log(containers, timestamp);
+		logLatency.record(System.nanoTime() - start);
+		
+		recordsWritten.addAndGet(containers.size());
+	}
+	
+	private void report(long elapsed, long interval, long written, long read) {
+		
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcTime += Math.max(0, gc.getCollectionTime());
+		}
+		
+		long directMemory = 0;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if("direct".equals(pool.getName())) directMemory = pool.getMemoryUsed();
+		}
+		
+		long[] log = logLatency.getAndReset(0.5, 0.99, 0.999);
+		long[] reads = readLatency.getAndReset(0.5, 0.99, 0.999);
+		
+		System.out.println(String.format("%7d  %9d  %6d/%6d/%7d  %7d/%7d/%8d  %7d  %11d  %7d/%7d  %8d/%8d  %8d",
+				elapsed / 1000, written * 1000 / Math.max(1, interval),
+				log[0] / 1000, log[1] / 1000, log[2] / 1000,
+				reads[0] / 1000, reads[1] / 1000, reads[2] / 1000,
+				read * 1000 / Math.max(1, interval), readErrors.get(),
+				memory.getHeapMemoryUsage().getUsed() / (1024*1024), directMemory / (1024*1024), gcCount, gcTime,
+				databaseFile.length() / (1024*1024)));
+	}
+	
+	/**
+	 * Queries random channels. Half of the queries request the last hour, the other half one of a few
+	 * fixed historical days, like reports that are requested repeatedly.
+	 */
+	private class Reader implements Runnable {
+		
+		private final Random readerRandom;
+		
+		public Reader(int index) {
+			readerRandom = new Random(index);
+		}
+		
+		@Override
+		public void run() {
+			
+			while (running) {
+				
+				GeneratedChannel channel = channels.get(readerRandom.nextInt(channels.size()));
+				long now = simulatedTime;
+				long startTime;
+				long endTime;
+				
+				// complete report periods within the simulated time span
+				long reportEnd = now - REPORT_AGE;
+				long reportSpan = reportEnd - simulatedStart >= 2*DAY ? DAY : HOUR;
+				reportEnd = reportEnd / reportSpan * reportSpan;
+				long reportPeriods = Math.min(3, (reportEnd - simulatedStart) / reportSpan);
+				
+				if(reportPeriods<=0 || readerRandom.nextBoolean()) {
+					startTime = now - HOUR;
+					endTime = now;
+				} else {
+					endTime = reportEnd - readerRandom.nextInt((int) reportPeriods) * reportSpan;
+					startTime = endTime - reportSpan;
+				}
+				
+				long start = System.nanoTime();
+				try {
+					List<Record> records = logger.getRecords(channel.getId(), startTime, endTime);
+					readLatency.record(System.nanoTime() - start);
+					recordsRead.addAndGet(records.size());
+				} catch (IOException e) {
+					readErrors.incrementAndGet();
+				}
+				
+				try {
+					Thread.sleep(readerPause);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
+	private class GeneratedChannel implements LogChannel {
+		
+		private final String id;
+		private final ValueType valueType;
+		private final long interval;
+		private final long offset;
+		private long counter = 0;
+		
+		public GeneratedChannel(String id, ValueType valueType, long interval, long offset) {
+			this.id = id;
+			this.valueType = valueType;
+			this.interval = interval;
+			this.offset = offset;
+		}
+		
+		public Value nextValue(long timestamp) {
+			
+			counter++;
+			
+			switch (valueType) {
+			case FLOAT:
+				return new FloatValue((float) (20 + 5 * Math.sin(timestamp / 3600000.0)));
+			case LONG:
+				return new LongValue(counter * 17);
+			case INTEGER:
+				return new IntValue(random.nextInt(10000));
+			case SHORT:
+			case BYTE:
+				return new IntValue(random.nextInt(100));
+			case BOOLEAN:
+				return new BooleanValue(counter % 10 < 5);
+			case STRING:
+				return new StringValue(STATES[(int) (counter / 100 % STATES.length)]);
+			case BYTE_ARRAY:
+				byte[] frame = new byte[16 + random.nextInt(48)];
+				random.nextBytes(frame);
+				return new ByteArrayValue(frame);
+			default:
+				return new DoubleValue(230 + 10 * Math.sin(timestamp / 600000.0) + random.nextGaussian());
+			}
+		}
+		
+		@Override
+		public String getId() {
+			return id;
+		}
+		
+		@Override
+		public String getDescription() {
+			return "generated " + valueType.name() + " channel";
+		}
+		
+		@Override
+		public String getUnit() {
+			return "";
+		}
+		
+		@Override
+		public ValueType getValueType() {
+			return valueType;
+		}
+		
+		@Override
+		public Integer getValueTypeLength() {
+			return 0;
+		}
+		
+		@Override
+		public Integer getLoggingInterval() {
+			return (int) interval;
+		}
+		
+		@Override
+		public Integer getLoggingTimeOffset() {
+			return (int) offset;
+		}
+	}
+	
+	/**
+	 * Latency histogram with logarithmic buckets (about 4% resolution) from 1ns to about 1000s.
+	 */
+	private static class Histogram {
+		
+		private static final int BUCKETS_PER_POWER_OF_TWO = 16;
+		private final long[] counts = new long[40 * BUCKETS_PER_POWER_OF_TWO];
+		
+		public synchronized void record(long nanos) {
+			counts[Math.min(counts.length-1, bucket(nanos))]++;
+		}
+		
+		/**
+		 * Returns the specified percentiles in nanoseconds and resets the histogram.
+		 */
+		public synchronized long[] getAndReset(double... percentiles) {
+			
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			
+			long[] result = new long[percentiles.length];
+			
+			for (int p = 0; p < percentiles.length && total > 0; p++) {
+				long rank = (long) Math.ceil(percentiles[p] * total);
+				long sum = 0;
+				for (int i = 0; i < counts.length; i++) {
+					sum += counts[i];
+					if(sum>=rank) {
+						result[p] = upperBound(i);
+						break;
+					}
+				}
+			}
+			
+			Arrays.fill(counts, 0);
+			return result;
+		}
+		
+		private static int bucket(long nanos) {
+			if(nanos<=1) return 0;
+			return (int) (Math.log(nanos) / Math.log(2) * BUCKETS_PER_POWER_OF_TWO);
+		}
+		
+		private static long upperBound(int bucket) {
+			return (long) Math.pow(2, (bucket+1) / (double) BUCKETS_PER_POWER_OF_TWO);
+		}
+	}
+
+}
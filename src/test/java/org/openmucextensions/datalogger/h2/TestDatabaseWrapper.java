@@ -0,0 +1,175 @@
+package org.openmucextensions.datalogger.h2;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.h2.engine.Session;
+import org.h2.jdbc.JdbcConnection;
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmuc.framework.core.datamanager.LogRecordContainerImpl;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.LongValue;
+import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.ValueType;
+import org.openmuc.framework.datalogger.spi.LogChannel;
+import org.openmuc.framework.datalogger.spi.LogRecordContainer;
+
+public class TestDatabaseWrapper {
+
+	DatabaseWrapper instance;
+	Connection connection;
+	
+	@Before
+	public void setUp() throws Exception {
+		instance = new DatabaseWrapper();
+		// keeps the in-memory database open independent of the wrapper
+		connection = DriverManager.getConnection("jdbc:h2:mem:wrapper", "sa", "");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		instance.disconnect();
+		connection.close();
+	}
+	
+	@Test(expected = SQLException.class)
+	public void testNewerSchemaVersion() throws Throwable {
+		
+		Statement statement = connection.createStatement();
+		statement.execute("CREATE TABLE SCHEMA_INFO(ID INT PRIMARY KEY, VERSION INT);");
+		statement.execute("INSERT INTO SCHEMA_INFO(ID, VERSION) VALUES(0, " + (DatabaseWrapper.SCHEMA_VERSION+1) + ");");
+		statement.close();
+		
+		instance.connect("mem:wrapper");
+		
+	}
+	
+	@Test
+	public void testLogRecordColumns() throws Throwable {
+		
+		instance.connect("mem:wrapper");
+		
+		LogChannel channel = mock(LogChannel.class);
+		when(channel.getId()).thenReturn("columnsChannel");
+		when(channel.getValueType()).thenReturn(ValueType.LONG);
+		instance.addOrUpdateChannel(channel);
+		
+		List<Record> records = new ArrayList<>();
+		records.add(new Record(new LongValue(1), 1000l, Flag.VALID));
+		records.add(new Record(new LongValue(2), 2000l, Flag.VALID));
+		records.add(new Record(new LongValue(3), 3000l, Flag.VALID));
+		instance.logRecordColumns("columnsChannel", RecordColumns.fromRecords(ValueType.LONG, records));
+		
+		// existing records will be replaced
+		records.clear();
+		records.add(new Record(new LongValue(20), 2000l, Flag.TIMEOUT));
+		instance.logRecordColumns("columnsChannel", RecordColumns.fromRecords(ValueType.LONG, records));
+		
+		records = instance.getRecords("columnsChannel", 0l, 5000l);
+		
+		assertThat(records.size(), is(3));
+		assertThat(records.get(1).getValue().asLong(), is(20l));
+		assertThat(records.get(1).getFlag(), is(Flag.TIMEOUT));
+		assertThat(instance.getLatestRecord("columnsChannel").getTimestamp(), is(3000l));
+		
+	}
+	
+	@Test
+	public void testCompact() throws Throwable {
+		
+		DatabaseWrapper database = new DatabaseWrapper();
+		database.connect("./h2logger/compact");
+		Connection fileConnection = DriverManager.getConnection("jdbc:h2:./h2logger/compact", "sa", "");
+		
+		try {
+			for (int i = 0; i < 100; i++) {
+				List<LogRecordContainer> containers = new ArrayList<>();
+				for (int j = 0; j < 100; j++) {
+					containers.add(new LogRecordContainerImpl("channel" + j, new Record(new DoubleValue(j), i*1000l, Flag.VALID)));
+				}
+				database.logDoubleValues(containers, i*1000l);
+			}
+			
+			database.deleteRecordsBefore(90*1000l);
+			
+			MVStore store = getMVStore(fileConnection);
+			int retentionTime = store.getRetentionTime();
+			
+			database.compact(1000);
+			
+			assertThat(store.getRetentionTime(), is(retentionTime));
+			
+			Statement statement = fileConnection.createStatement();
+			ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM DOUBLE_VALUES;");
+			result.next();
+			assertThat(result.getInt(1), is(10*100));
+			statement.close();
+		} finally {
+			fileConnection.close();
+			database.disconnect();
+			new File("./h2logger/compact.mv.db").delete();
+			new File("./h2logger").delete();
+		}
+		
+	}
+	
+	@Test
+	public void testByteArrayMigration() throws Throwable {
+		
+		// schema version 1 with byte arrays stored as text in STRING_VALUES
+		Statement statement = connection.createStatement();
+		statement.execute("CREATE TABLE CHANNELS(ID VARCHAR(255) PRIMARY KEY, DESCRIPTION VARCHAR(255), UNIT VARCHAR(255), LAST_INIT TIMESTAMP, VALUE_TYPE VARCHAR(32));");
+		statement.execute("CREATE TABLE STRING_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE VARCHAR(1024), FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+		statement.execute("CREATE TABLE SCHEMA_INFO(ID INT PRIMARY KEY, VERSION INT);");
+		statement.execute("INSERT INTO SCHEMA_INFO(ID, VERSION) VALUES(0, 1);");
+		statement.execute("INSERT INTO CHANNELS(ID, VALUE_TYPE) VALUES('bytes', 'BYTE_ARRAY');");
+		statement.execute("CREATE TABLE BYTE_ARRAY_VALUES(ID VARCHAR(255), TIMESTAMP TIMESTAMP, VALUE VARBINARY, FLAG INT, PRIMARY KEY (ID, TIMESTAMP));");
+		statement.close();
+		
+		PreparedStatement insert = connection.prepareStatement("INSERT INTO STRING_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES('bytes', ?, ?, 1);");
+		insert.setTimestamp(1, new Timestamp(1000l));
+		insert.setString(2, "[0, -1, 16, -128]");
+		insert.execute();
+		insert.setTimestamp(1, new Timestamp(2000l));
+		insert.setString(2, "text");
+		insert.execute();
+		insert.close();
+		
+		// interrupted migration that already copied a row
+		insert = connection.prepareStatement("INSERT INTO BYTE_ARRAY_VALUES(ID, TIMESTAMP, VALUE, FLAG) VALUES('bytes', ?, X'00', 1);");
+		insert.setTimestamp(1, new Timestamp(1000l));
+		insert.execute();
+		insert.close();
+		
+		instance.connect("mem:wrapper");
+		
+		List<Record> records = instance.getRecords("bytes", 0l, 10000l);
+		
+		assertThat(records.size(), is(2));
+		assertArrayEquals(new byte[] { 0x00, (byte) 0xff, 0x10, (byte) 0x80 }, records.get(0).getValue().asByteArray());
+		assertArrayEquals("text".getBytes("UTF-8"), records.get(1).getValue().asByteArray());
+		
+	}
+	
+	private MVStore getMVStore(Connection connection) {
+		Session session = (Session) ((JdbcConnection) connection).getSession();
+		return session.getDatabase().getMvStore().getStore();
+	}
+
+}
@@ -3,8 +3,15 @@ package org.openmucextensions.datalogger.h2;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 
@@ -14,6 +21,7 @@ import static org.mockito.Mockito.*;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmuc.framework.data.BooleanValue;
+import org.openmuc.framework.data.ByteArrayValue;
 import org.openmuc.framework.data.DoubleValue;
 import org.openmuc.framework.data.Flag;
 import org.openmuc.framework.data.FloatValue;
@@ -84,6 +92,53 @@ public class TestH2Logger {
 		
 	}
 	
+	@Test
+	public void testRepeatedStringLogging() throws Throwable {
+		
+		final String channelId = "statusChannel";
+		String value = "RUNNING";
+				
+		instance.setChannelsToLog(getLogChannelList(channelId, ValueType.STRING));
+		
+		instance.log(getLogRecordContainerList(channelId, new Record(new StringValue(value), 2100l, Flag.VALID)), 2100l);
+		instance.log(getLogRecordContainerList(channelId, new Record(new StringValue("free text"), 2150l, Flag.VALID)), 2150l);
+		instance.log(getLogRecordContainerList(channelId, new Record(new StringValue(value), 2200l, Flag.VALID)), 2200l);
+		
+		List<Record> records = instance.getRecords(channelId, 2100l, 2200l);
+		
+		assertThat(records.size(), is(3));
+		assertThat(records.get(0).getValue().asString(), is(value));
+		assertThat(records.get(1).getValue().asString(), is("free text"));
+		assertThat(records.get(2).getValue().asString(), is(value));
+		
+		// the first occurrence is stored as text, the repetition as dictionary code
+		Connection connection = DriverManager.getConnection("jdbc:h2:./h2logger/database", "sa", "");
+		
+		try {
+			PreparedStatement statement = connection.prepareStatement("SELECT VALUE, CODE FROM STRING_VALUES WHERE ID=? AND TIMESTAMP=?;");
+			statement.setString(1, channelId);
+			
+			statement.setTimestamp(2, new Timestamp(2100l));
+			ResultSet result = statement.executeQuery();
+			assertTrue(result.next());
+			assertThat(result.getString("VALUE"), is(value));
+			assertThat(result.getObject("CODE"), is(nullValue()));
+			
+			statement.setTimestamp(2, new Timestamp(2200l));
+			result = statement.executeQuery();
+			assertTrue(result.next());
+			assertThat(result.getString("VALUE"), is(nullValue()));
+			assertThat(result.getObject("CODE"), is(notNullValue()));
+			
+			ResultSet dictionary = connection.createStatement().executeQuery("SELECT COUNT(*) FROM STRING_DICTIONARY WHERE VALUE='free text';");
+			dictionary.next();
+			assertThat(dictionary.getInt(1), is(0));
+		} finally {
+			connection.close();
+		}
+		
+	}
+	
 	@Test
 	public void testFloatLogging() throws Throwable {
 		
@@ -141,6 +196,245 @@ public class TestH2Logger {
 		
 	}
 	
+	@Test
+	public void testByteArrayLogging() throws Throwable {
+		
+		final String channelId = "byteArrayChannel";
+		byte[] value = new byte[] { 0x00, (byte) 0xff, 0x10, (byte) 0x80 };
+		long timestamp = 5500l;
+				
+		instance.setChannelsToLog(getLogChannelList(channelId, ValueType.BYTE_ARRAY));
+		
+		Record record = new Record(new ByteArrayValue(value), timestamp, Flag.VALID);
+		instance.log(getLogRecordContainerList(channelId, record), timestamp);
+		
+		List<Record> records = instance.getRecords(channelId, timestamp, timestamp);
+		
+		assertThat(records.size(), is(1));
+		assertArrayEquals(value, records.get(0).getValue().asByteArray());
+		
+	}
+	
+	@Test
+	public void testLatestRecord() throws Throwable {
+		
+		final String channelId = "latestChannel";
+				
+		instance.setChannelsToLog(getLogChannelList(channelId, ValueType.DOUBLE));
+		
+		instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.0), 6000l, Flag.VALID)), 6000l);
+		instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(2.0), 7000l, Flag.VALID)), 7000l);
+		
+		assertThat(instance.getLatestRecord(channelId).getValue().asDouble(), is(2.0));
+		assertThat(instance.getRecordAt(channelId, 6500l).getValue().asDouble(), is(1.0));
+		assertThat(instance.getRecordAt(channelId, 7000l).getValue().asDouble(), is(2.0));
+		assertThat(instance.getRecordAt(channelId, 5000l), is(nullValue()));
+		assertThat(instance.getLatestRecords().get(channelId).getTimestamp(), is(7000l));
+		
+	}
+	
+	@Test
+	public void testLatestRecordAfterRestart() throws Throwable {
+		
+		final String channelId = "restartChannel";
+		long timestamp = 1000000000l;
+		long hour = 60*60*1000l;
+		
+		instance.setChannelsToLog(getLogChannelList(channelId, ValueType.DOUBLE));
+		
+		instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.0), timestamp, Flag.VALID)), timestamp);
+		instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(2.0), timestamp+3*hour, Flag.VALID)), timestamp+3*hour);
+		
+		// the in-memory last value table is empty after a restart, so the database has to be used
+		instance.deactivate(null);
+		instance = new H2Logger();
+		instance.activate(null);
+		
+		assertThat(instance.getLatestRecord(channelId).getValue().asDouble(), is(2.0));
+		assertThat(instance.getRecordAt(channelId, timestamp+2*hour).getValue().asDouble(), is(1.0));
+		assertThat(instance.getRecordAt(channelId, timestamp+4*hour).getValue().asDouble(), is(2.0));
+		assertThat(instance.getRecordAt(channelId, timestamp-1), is(nullValue()));
+		assertThat(instance.getLatestRecords().get(channelId).getTimestamp(), is(timestamp+3*hour));
+		
+	}
+	
+	@Test
+	public void testRecordColumns() throws Throwable {
+		
+		final String channelId = "columnsChannel";
+		
+		instance.setChannelsToLog(getLogChannelList(channelId, ValueType.LONG));
+		
+		for (long timestamp = 14000l; timestamp < 14500l; timestamp += 100l) {
+			instance.log(getLogRecordContainerList(channelId, new Record(new LongValue(timestamp), timestamp, Flag.VALID)), timestamp);
+		}
+		
+		RecordColumns columns = instance.getRecordColumns(channelId, 14000l, 14400l);
+		
+		assertThat(columns.getSize(), is(5));
+		assertThat(columns.getTimestamps()[4], is(14400l));
+		assertThat(columns.getLongValues()[4], is(14400l));
+		assertThat(columns.getFlags()[0], is((byte) Flag.VALID.getCode()));
+		
+		final List<Integer> chunkSizes = new ArrayList<>();
+		instance.getRecordColumns(channelId, 14000l, 14400l, 2, new RecordColumnsHandler() {
+			@Override
+			public void handle(RecordColumns chunk) {
+				chunkSizes.add(chunk.getSize());
+			}
+		});
+		
+		assertThat(chunkSizes, is(Arrays.asList(2, 2, 1)));
+		
+	}
+	
+	@Test
+	public void testRecordTimestamps() throws Throwable {
+		
+		instance.deactivate(null);
+		System.setProperty("org.openmucextensions.datalogger.h2.recordTimestamps", "true");
+		
+		try {
+			instance = new H2Logger();
+			instance.activate(null);
+			
+			final String channelId = "recordTimestampChannel";
+			
+			instance.setChannelsToLog(getLogChannelList(channelId, ValueType.DOUBLE));
+			
+			List<LogRecordContainer> containers = new ArrayList<>();
+			containers.addAll(getLogRecordContainerList(channelId, new Record(new DoubleValue(2.0), 9000l, Flag.VALID)));
+			containers.addAll(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.0), 8000l, Flag.VALID)));
+			containers.addAll(getLogRecordContainerList(channelId, new Record(new DoubleValue(3.0), 9000l, Flag.VALID)));
+			instance.log(containers, 10000l);
+			
+			// late record and duplicate of an existing record
+			containers.clear();
+			containers.addAll(getLogRecordContainerList(channelId, new Record(new DoubleValue(0.5), 7000l, Flag.VALID)));
+			containers.addAll(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.5), 8000l, Flag.VALID)));
+			instance.log(containers, 11000l);
+			
+			List<Record> records = instance.getRecords(channelId, 0l, 20000l);
+			
+			assertThat(records.size(), is(3));
+			assertThat(records.get(0).getValue().asDouble(), is(0.5));
+			assertThat(records.get(1).getValue().asDouble(), is(1.5));
+			assertThat(records.get(2).getValue().asDouble(), is(3.0));
+			assertThat(records.get(2).getTimestamp(), is(9000l));
+			assertThat(instance.getLatestRecord(channelId).getValue().asDouble(), is(3.0));
+		} finally {
+			System.clearProperty("org.openmucextensions.datalogger.h2.recordTimestamps");
+		}
+		
+	}
+	
+	@Test
+	public void testStartupBuffer() throws Throwable {
+		
+		instance.deactivate(null);
+		System.setProperty("org.openmucextensions.datalogger.h2.startupBufferSize", "2");
+		
+		try {
+			CountDownLatch startupGate = new CountDownLatch(1);
+			
+			instance = new H2Logger();
+			instance.setStartupGate(startupGate);
+			instance.activate(null);
+			
+			// the database startup is held back, so the channels and records will be buffered
+			final String channelId = "startupChannel";
+			
+			instance.setChannelsToLog(getLogChannelList(channelId, ValueType.DOUBLE));
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.0), 15000l, Flag.VALID)), 15000l);
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(2.0), 15100l, Flag.VALID)), 15100l);
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(3.0), 15200l, Flag.VALID)), 15200l);
+			
+			startupGate.countDown();
+			
+			// read requests wait until the buffered records have been written
+			List<Record> records = instance.getRecords(channelId, 15000l, 15200l);
+			
+			// the oldest log call has been discarded because the buffer was full
+			assertThat(records.size(), is(2));
+			assertThat(records.get(0).getValue().asDouble(), is(2.0));
+			assertThat(records.get(1).getValue().asDouble(), is(3.0));
+		} finally {
+			System.clearProperty("org.openmucextensions.datalogger.h2.startupBufferSize");
+		}
+		
+	}
+	
+	@Test
+	public void testHybridStorage() throws Throwable {
+		
+		instance.deactivate(null);
+		System.setProperty("org.openmucextensions.datalogger.h2.storageMode", "hybrid");
+		System.setProperty("org.openmucextensions.datalogger.h2.downsampleInterval", "60000");
+		
+		final String channelId = "hybridChannel";
+		
+		try {
+			instance = new H2Logger();
+			instance.activate(null);
+			
+			instance.setChannelsToLog(getLogChannelList(channelId, ValueType.DOUBLE));
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.0), 12000l, Flag.VALID)), 12000l);
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(2.0), 13000l, Flag.VALID)), 13000l);
+			
+			List<Record> records = instance.getRecords(channelId, 12000l, 13000l);
+			
+			assertThat(records.size(), is(2));
+			assertThat(records.get(1).getValue().asDouble(), is(2.0));
+			assertThat(instance.getRecordAt(channelId, 12500l).getValue().asDouble(), is(1.0));
+			
+			// records in the hot store will be moved to the database on deactivation, without downsampling
+			instance.deactivate(null);
+		} finally {
+			System.clearProperty("org.openmucextensions.datalogger.h2.storageMode");
+			System.clearProperty("org.openmucextensions.datalogger.h2.downsampleInterval");
+		}
+		
+		instance = new H2Logger();
+		instance.activate(null);
+		
+		List<Record> records = instance.getRecords(channelId, 12000l, 13000l);
+		
+		assertThat(records.size(), is(2));
+		assertThat(records.get(0).getValue().asDouble(), is(1.0));
+		assertThat(records.get(0).getTimestamp(), is(12000l));
+		
+	}
+	
+	@Test
+	public void testHybridLateRecord() throws Throwable {
+		
+		instance.deactivate(null);
+		System.setProperty("org.openmucextensions.datalogger.h2.storageMode", "hybrid");
+		System.setProperty("org.openmucextensions.datalogger.h2.recordTimestamps", "true");
+		
+		final String channelId = "hybridLateChannel";
+		
+		try {
+			instance = new H2Logger();
+			instance.activate(null);
+			
+			instance.setChannelsToLog(getLogChannelList(channelId, ValueType.DOUBLE));
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(1.0), 1000l, Flag.VALID)), 1000l);
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(3.0), 3000l, Flag.VALID)), 3000l);
+			
+			// the late record can't be appended to the hot store and will be written to the database
+			instance.log(getLogRecordContainerList(channelId, new Record(new DoubleValue(2.0), 2000l, Flag.VALID)), 3100l);
+			
+			assertThat(instance.getRecordAt(channelId, 2500l).getValue().asDouble(), is(2.0));
+			assertThat(instance.getRecordAt(channelId, 1500l).getValue().asDouble(), is(1.0));
+			assertThat(instance.getRecords(channelId, 1000l, 3000l).size(), is(3));
+		} finally {
+			System.clearProperty("org.openmucextensions.datalogger.h2.storageMode");
+			System.clearProperty("org.openmucextensions.datalogger.h2.recordTimestamps");
+		}
+		
+	}
+	
 	private List<LogChannel> getLogChannelList(String channelId, ValueType type) {
 		
 		LogChannel channel = mock(LogChannel.class);
@@ -0,0 +1,92 @@
+package org.openmucextensions.datalogger.h2;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.ValueType;
+
+public class TestHotStore {
+	
+	@Test
+	public void testAppend() {
+		
+		HotStore store = new HotStore();
+		
+		// more records than fit into the first block and into one full block
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(store.append("channel", ValueType.DOUBLE, i*100l, new DoubleValue(i), Flag.VALID));
+		}
+		
+		RecordColumns columns = store.getRecordColumns("channel", 0l, 10000*100l);
+		
+		assertThat(columns.getSize(), is(10000));
+		assertThat(columns.getTimestamps()[63], is(6300l));
+		assertThat(columns.getDoubleValues()[64], is(64.0));
+		assertThat(columns.getDoubleValues()[9999], is(9999.0));
+		assertThat(store.getRecordAt("channel", 6450l).getValue().asDouble(), is(64.0));
+		
+	}
+	
+	@Test
+	public void testRemoveBefore() {
+		
+		HotStore store = new HotStore();
+		
+		for (int i = 0; i < 10000; i++) {
+			store.append("channel", ValueType.DOUBLE, i*100l, new DoubleValue(i), Flag.VALID);
+		}
+		
+		assertThat(store.removeBefore(5000*100l), is(5000));
+		
+		// a new channel starts with a small block again
+		store.append("other", ValueType.DOUBLE, 10000*100l, new DoubleValue(1.0), Flag.VALID);
+		store.append("channel", ValueType.DOUBLE, 10000*100l, new DoubleValue(10000), Flag.VALID);
+		
+		RecordColumns columns = store.getRecordColumns("channel", 0l, 10000*100l);
+		
+		assertThat(columns.getSize(), is(5001));
+		assertThat(columns.getDoubleValues()[0], is(5000.0));
+		assertThat(columns.getDoubleValues()[5000], is(10000.0));
+		assertThat(store.getRecordColumns("other", 0l, 10000*100l).getSize(), is(1));
+		
+	}
+	
+	@Test
+	public void testGetRecordsBefore() {
+		
+		HotStore store = new HotStore();
+		
+		for (int i = 0; i < 10000; i++) {
+			store.append("channel", ValueType.DOUBLE, i*100l, new DoubleValue(i), Flag.VALID);
+		}
+		
+		// records will be returned in chunks, starting after the last record of the previous chunk
+		RecordColumns columns = store.getRecordsBefore("channel", Long.MIN_VALUE, 9000*100l, 0, 4000);
+		assertThat(columns.getSize(), is(4000));
+		assertThat(columns.getDoubleValues()[3999], is(3999.0));
+		
+		columns = store.getRecordsBefore("channel", 4000*100l, 9000*100l, 0, 4000);
+		assertThat(columns.getSize(), is(4000));
+		
+		columns = store.getRecordsBefore("channel", 8000*100l, 9000*100l, 0, 4000);
+		assertThat(columns.getSize(), is(1000));
+		assertThat(columns.getDoubleValues()[999], is(8999.0));
+		
+		// the last record of each second, also across chunk boundaries
+		columns = store.getRecordsBefore("channel", Long.MIN_VALUE, 9000*100l, 1000, 4000);
+		assertThat(columns.getSize(), is(900));
+		assertThat(columns.getTimestamps()[0], is(900l));
+		assertThat(columns.getDoubleValues()[899], is(8999.0));
+		
+		// records before the threshold will not be accepted any longer
+		assertFalse(store.append("other", ValueType.DOUBLE, 1000l, new DoubleValue(1.0), Flag.VALID));
+		
+		assertThat(store.removeBefore("channel", 9000*100l), is(9000));
+		assertThat(store.getRecordColumns("channel", 0l, 10000*100l).getSize(), is(1000));
+		
+	}
+	
+}
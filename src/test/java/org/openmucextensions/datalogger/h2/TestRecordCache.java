@@ -0,0 +1,110 @@
+package org.openmucextensions.datalogger.h2;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.StringValue;
+import org.openmuc.framework.data.ValueType;
+
+public class TestRecordCache {
+
+	@Test
+	public void testGet() {
+		
+		RecordCache cache = new RecordCache(1024*1024);
+		assertTrue(cache.put("channel", 0l, 1000l, getColumns(10)));
+		
+		List<Record> records = cache.get("channel", 0l, 1000l).toRecords();
+		
+		assertThat(records.size(), is(10));
+		assertThat(records.get(3).getValue().asDouble(), is(3.0));
+		assertThat(records.get(3).getTimestamp(), is(300l));
+		assertThat(records.get(3).getFlag(), is(Flag.VALID));
+		assertThat(cache.get("channel", 0l, 999l), is(nullValue()));
+		
+	}
+	
+	@Test
+	public void testStringValues() {
+		
+		RecordCache cache = new RecordCache(1024*1024);
+		
+		List<Record> records = new ArrayList<>();
+		records.add(new Record(new StringValue("RUNNING"), 0l, Flag.VALID));
+		cache.put("channel", 0l, 1000l, RecordColumns.fromRecords(ValueType.STRING, records));
+		
+		assertThat(cache.get("channel", 0l, 1000l).getStringValues()[0], is("RUNNING"));
+		
+	}
+	
+	@Test
+	public void testInvalidate() {
+		
+		RecordCache cache = new RecordCache(1024*1024);
+		cache.put("channel", 0l, 1000l, getColumns(10));
+		cache.put("channel", 2000l, 3000l, getColumns(10));
+		cache.put("other", 0l, 1000l, getColumns(10));
+		
+		cache.invalidate("channel", 500l);
+		
+		assertThat(cache.get("channel", 0l, 1000l), is(nullValue()));
+		assertThat(cache.get("channel", 2000l, 3000l), is(notNullValue()));
+		assertThat(cache.get("other", 0l, 1000l), is(notNullValue()));
+		
+		cache.invalidateBefore(1500l);
+		
+		assertThat(cache.get("other", 0l, 1000l), is(nullValue()));
+		assertThat(cache.get("channel", 2000l, 3000l), is(notNullValue()));
+		
+		cache.invalidate("channel");
+		
+		assertThat(cache.get("channel", 2000l, 3000l), is(nullValue()));
+		assertThat(cache.getSize(), is(0l));
+		
+	}
+	
+	@Test
+	public void testEviction() {
+		
+		// room for one and a half entries, so the second entry requires an eviction
+		long maxSize = getColumns(50).getHeapSize() * 3 / 2;
+		
+		RecordCache cache = new RecordCache(maxSize);
+		cache.put("channel1", 0l, 1000l, getColumns(50));
+		cache.put("channel2", 0l, 1000l, getColumns(50));
+		
+		// the first entry is the least recently used one
+		assertThat(cache.get("channel1", 0l, 1000l), is(nullValue()));
+		assertThat(cache.get("channel2", 0l, 1000l), is(notNullValue()));
+		assertTrue(cache.getSize()<=maxSize);
+		
+	}
+	
+	@Test
+	public void testDisabled() {
+		
+		RecordCache cache = new RecordCache(0);
+		
+		assertFalse(cache.put("channel", 0l, 1000l, getColumns(10)));
+		assertThat(cache.get("channel", 0l, 1000l), is(nullValue()));
+		
+	}
+	
+	private RecordColumns getColumns(int count) {
+		
+		List<Record> records = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			records.add(new Record(new DoubleValue(i), i*100l, Flag.VALID));
+		}
+		
+		return RecordColumns.fromRecords(ValueType.DOUBLE, records);
+	}
+
+}
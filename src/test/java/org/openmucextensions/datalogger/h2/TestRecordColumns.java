@@ -0,0 +1,75 @@
+package org.openmucextensions.datalogger.h2;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmuc.framework.data.DoubleValue;
+import org.openmuc.framework.data.Flag;
+import org.openmuc.framework.data.Record;
+import org.openmuc.framework.data.ValueType;
+
+public class TestRecordColumns {
+
+	@Test
+	public void testToRecords() {
+		
+		RecordColumns columns = getColumns(1.0, 100l, 2.0, 200l);
+		
+		List<Record> records = columns.toRecords();
+		
+		assertThat(records.size(), is(2));
+		assertThat(records.get(1).getValue().asDouble(), is(2.0));
+		assertThat(records.get(1).getTimestamp(), is(200l));
+		assertThat(records.get(1).getFlag(), is(Flag.VALID));
+		
+	}
+	
+	@Test
+	public void testMerge() {
+		
+		RecordColumns columns = getColumns(1.0, 100l, 2.0, 200l, 4.0, 400l);
+		RecordColumns preferredColumns = getColumns(2.5, 200l, 3.0, 300l);
+		
+		RecordColumns merged = RecordColumns.merge(columns, preferredColumns);
+		
+		assertThat(merged.getSize(), is(4));
+		assertArrayEquals(new long[] { 100l, 200l, 300l, 400l }, trim(merged.getTimestamps(), merged.getSize()));
+		assertThat(merged.getDoubleValues()[1], is(2.5));
+		assertThat(merged.getDoubleValues()[3], is(4.0));
+		
+	}
+	
+	@Test
+	public void testGrow() {
+		
+		RecordColumns columns = new RecordColumns(ValueType.LONG, 1);
+		for (int i = 0; i < 100; i++) {
+			columns.setLong(columns.add(i, Flag.VALID), i);
+		}
+		
+		assertThat(columns.getSize(), is(100));
+		assertThat(columns.getLongValues()[99], is(99l));
+		
+	}
+	
+	private RecordColumns getColumns(Object... valuesAndTimestamps) {
+		
+		List<Record> records = new ArrayList<>();
+		for (int i = 0; i < valuesAndTimestamps.length; i += 2) {
+			records.add(new Record(new DoubleValue((Double) valuesAndTimestamps[i]), (Long) valuesAndTimestamps[i+1], Flag.VALID));
+		}
+		
+		return RecordColumns.fromRecords(ValueType.DOUBLE, records);
+	}
+	
+	private long[] trim(long[] array, int size) {
+		long[] result = new long[size];
+		System.arraycopy(array, 0, result, 0, size);
+		return result;
+	}
+
+}